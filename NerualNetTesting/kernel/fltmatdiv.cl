@@ -1,5 +0,0 @@
-__kernel void fltmatdiv(__const float a, __global float* b, global float* out){
-	int i = get_global_id(0);
-	
-	out[i] = a / b[i];
-}
\ No newline at end of file
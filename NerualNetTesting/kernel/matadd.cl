@@ -1,5 +0,0 @@
-__kernel void matadd(__global float* a, __global float* b, global float* out){
-	int i = get_global_id(0);
-	
-	out[i] = a[i] + b[i];
-}
\ No newline at end of file
@@ -1,5 +0,0 @@
-__kernel void matfltdiv(__global float* a, __const float b, global float* out){
-	int i = get_global_id(0);
-	
-	out[i] = a[i] / b;
-}
\ No newline at end of file
@@ -0,0 +1,134 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Stress tests Matrix from several threads by having them all forward batches through one network
+ * at once. Every output and cost is checked against those computed on a single thread beforehand,
+ * and the amount of forwards a second is reported for each amount of threads. Exits with status 1
+ * if any result did not match
+ * 
+ * @author Kacper
+ *
+ */
+public class ConcurrentForwardBenchmark {
+	
+	private static final int INPUT_LAYER_SIZE = 784;
+	private static final int HIDDEN_LAYER_SIZE = 1000;
+	private static final int OUTPUT_LAYER_SIZE = 10;
+	private static final int NUMBER_OF_HIDDEN_LAYERS = 2;
+	
+	private static final int BATCH_SIZE = 100;
+	private static final int BATCHES = 16;
+	
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+	private static final int FORWARDS_PER_THREAD = 50;
+	
+	private static final double TOLERANCE = 1e-5;
+	
+	public static void main(String[] args) throws Exception {
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		
+		Random random = new Random(0);
+		NeuralNetwork network = new NeuralNetwork(INPUT_LAYER_SIZE, OUTPUT_LAYER_SIZE, HIDDEN_LAYER_SIZE, NUMBER_OF_HIDDEN_LAYERS, random);
+		
+		Matrix[] x = new Matrix[BATCHES];
+		Matrix[] y = new Matrix[BATCHES];
+		float[][] expectedYHat = new float[BATCHES][];
+		float[] expectedCost = new float[BATCHES];
+		for (int i = 0; i < BATCHES; i++) {
+			
+			x[i] = new Matrix(INPUT_LAYER_SIZE, BATCH_SIZE, random::nextDouble);
+			y[i] = new Matrix(OUTPUT_LAYER_SIZE, BATCH_SIZE, () -> random.nextInt(2) * 1d);
+			
+			Matrix yHat = network.forward(x[i]);
+			expectedYHat[i] = yHat.getData();
+			expectedCost[i] = network.getCost(x[i], y[i], yHat);
+			
+		}
+		
+		// the batches were written by this thread
+		Matrix.finish();
+		
+		System.out.println("threads,forwardsPerSecond,speedup,mismatches");
+		
+		double baseline = 0;
+		long totalMismatches = 0;
+		
+		for (int threads : THREADS) {
+			
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			AtomicLong mismatches = new AtomicLong();
+			
+			Future<?>[] tasks = new Future<?>[threads];
+			long start = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				
+				int thread = t;
+				tasks[t] = executor.submit(() -> {
+					
+					for (int i = 0; i < FORWARDS_PER_THREAD; i++) {
+						
+						int batch = (thread + i) % BATCHES;
+						Matrix yHat = network.forward(x[batch]);
+						float cost = network.getCost(x[batch], y[batch], yHat);
+						
+						if (!matches(yHat.getData(), expectedYHat[batch]) || !matches(cost, expectedCost[batch])) {
+							mismatches.incrementAndGet();
+						}
+						
+					}
+					
+				});
+				
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			executor.shutdown();
+			
+			double forwardsPerSecond = threads * FORWARDS_PER_THREAD / seconds;
+			if (baseline == 0) {
+				baseline = forwardsPerSecond;
+			}
+			totalMismatches += mismatches.get();
+			
+			System.out.println(threads + "," + String.format("%.1f", forwardsPerSecond) + "," + String.format("%.2f", forwardsPerSecond / baseline) + "," + mismatches.get());
+			
+		}
+		
+		if (totalMismatches > 0) {
+			System.err.println(totalMismatches + " results did not match those computed on one thread");
+			System.exit(1);
+		}
+		
+	}
+	
+	private static boolean matches(float[] actual, float[] expected) {
+		
+		for (int i = 0; i < actual.length; i++) {
+			if (!matches(actual[i], expected[i])) {
+				return false;
+			}
+		}
+		return true;
+		
+	}
+	
+	private static boolean matches(float actual, float expected) {
+		
+		return Math.abs(actual - expected) <= TOLERANCE * Math.max(1, Math.abs(expected));
+		
+	}
+	
+}
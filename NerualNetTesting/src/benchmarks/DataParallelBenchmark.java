@@ -0,0 +1,97 @@
+package benchmarks;
+
+import java.util.Random;
+
+import core.Matrix;
+import core.NeuralNetwork;
+import trainers.DataParallel;
+import trainers.GradientDescent;
+
+/**
+ * 
+ * Measures how many samples a second DataParallel trains on for every amount of devices the backend
+ * has, at the layer sizes Train uses. Every run starts from the same weights and takes the same
+ * steps, so the weights it ends with are also compared against those of the run on one device.
+ * Several CPU sub-devices can be tried with -Dmatrix.opencl.subdevices=4
+ * 
+ * @author Kacper
+ *
+ */
+public class DataParallelBenchmark {
+	
+	private static final int INPUT_LAYER_SIZE = 784;
+	private static final int HIDDEN_LAYER_SIZE = 1000;
+	private static final int OUTPUT_LAYER_SIZE = 10;
+	private static final int NUMBER_OF_HIDDEN_LAYERS = 1;
+	
+	private static final int BATCH_SIZE = 600;
+	private static final float LEARNING_RATE = 0.001f;
+	
+	private static final int WARMUP_STEPS = 3;
+	private static final int STEPS = 20;
+	
+	public static void main(String[] args) {
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend with " + Matrix.getDeviceCount() + " devices");
+		System.out.println("devices,samplesPerSecond,speedup,maxWeightDifference");
+		
+		Random random = new Random(0);
+		Matrix x = new Matrix(INPUT_LAYER_SIZE, BATCH_SIZE, random::nextDouble);
+		Matrix y = new Matrix(OUTPUT_LAYER_SIZE, BATCH_SIZE, () -> random.nextInt(2) * 1d);
+		
+		double baseline = 0;
+		float[][] baselineW = null;
+		
+		for (int devices = 1; devices <= Matrix.getDeviceCount(); devices++) {
+			
+			NeuralNetwork network = new NeuralNetwork(INPUT_LAYER_SIZE, OUTPUT_LAYER_SIZE, HIDDEN_LAYER_SIZE, NUMBER_OF_HIDDEN_LAYERS, new Random(1));
+			DataParallel dataParallel = new DataParallel(network, devices);
+			GradientDescent descentMethod = new GradientDescent(network, LEARNING_RATE);
+			
+			for (int i = 0; i < WARMUP_STEPS; i++) {
+				dataParallel.step(x, y, descentMethod);
+			}
+			
+			long start = System.nanoTime();
+			for (int i = 0; i < STEPS; i++) {
+				dataParallel.step(x, y, descentMethod);
+			}
+			Matrix.finish();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			double samplesPerSecond = (double) BATCH_SIZE * STEPS / seconds;
+			float[][] w = getData(network.getW());
+			if (devices == 1) {
+				baseline = samplesPerSecond;
+				baselineW = w;
+			}
+			
+			System.out.println(devices + "," + String.format("%.1f", samplesPerSecond) + "," + String.format("%.2f", samplesPerSecond / baseline) + "," + maxDifference(w, baselineW));
+			
+		}
+		
+	}
+	
+	private static float[][] getData(Matrix[] matrices) {
+		
+		float[][] data = new float[matrices.length][];
+		for (int i = 0; i < matrices.length; i++) {
+			data[i] = matrices[i].getData();
+		}
+		return data;
+		
+	}
+	
+	private static double maxDifference(float[][] a, float[][] b) {
+		
+		double max = 0;
+		for (int i = 0; i < a.length; i++) {
+			for (int j = 0; j < a[i].length; j++) {
+				max = Math.max(max, Math.abs(a[i][j] - b[i][j]));
+			}
+		}
+		return max;
+		
+	}
+	
+}
@@ -0,0 +1,134 @@
+package benchmarks;
+
+import java.util.Random;
+
+import core.Matrix;
+
+/**
+ * 
+ * Measures the GFLOP/s of Matrix.dot in all three transpose modes at the shapes NeuralNetwork uses
+ * when Train runs with its default layer sizes, and checks every result against a reference
+ * computed on the host. Run it once as it is and once with -Dmatrix.opencl.naivedot=true to compare
+ * the tiled kernels against the old ones
+ * 
+ * @author Kacper
+ *
+ */
+public class DotBenchmark {
+	
+	private static final int INPUT_LAYER_SIZE = 784;
+	private static final int HIDDEN_LAYER_SIZE = 1000;
+	private static final int OUTPUT_LAYER_SIZE = 10;
+	
+	private static final int[] BATCH_SIZES = { 100, 600 };
+	
+	private static final int WARMUP_REPETITIONS = 3;
+	private static final int REPETITIONS = 20;
+	
+	private static final double TOLERANCE = 1e-3;
+	
+	public static void main(String[] args) {
+		
+		Random random = new Random(0);
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		System.out.println("operation,m,n,p,gflops,maxRelativeError");
+		
+		for (int batch : BATCH_SIZES) {
+			
+			// forward, w[i].x[i]
+			benchmark(random, HIDDEN_LAYER_SIZE, INPUT_LAYER_SIZE, batch, false, false);
+			benchmark(random, HIDDEN_LAYER_SIZE, HIDDEN_LAYER_SIZE, batch, false, false);
+			benchmark(random, OUTPUT_LAYER_SIZE, HIDDEN_LAYER_SIZE, batch, false, false);
+			
+			// backward, transpose(w[i + 1]).delta[i + 1]
+			benchmark(random, HIDDEN_LAYER_SIZE, OUTPUT_LAYER_SIZE, batch, true, false);
+			benchmark(random, HIDDEN_LAYER_SIZE, HIDDEN_LAYER_SIZE, batch, true, false);
+			
+			// gradients, delta[i].transpose(x[i])
+			benchmark(random, HIDDEN_LAYER_SIZE, batch, INPUT_LAYER_SIZE, false, true);
+			benchmark(random, HIDDEN_LAYER_SIZE, batch, HIDDEN_LAYER_SIZE, false, true);
+			benchmark(random, OUTPUT_LAYER_SIZE, batch, HIDDEN_LAYER_SIZE, false, true);
+			
+		}
+		
+	}
+	
+	/**
+	 * Times out = op(a).op(b) where a is rows*inner and b is inner*columns before transposition
+	 */
+	private static void benchmark(Random random, int rows, int inner, int columns, boolean aT, boolean bT) {
+		
+		float[] aData = randomData(random, rows * inner);
+		float[] bData = randomData(random, inner * columns);
+		
+		Matrix a = aT ? new Matrix(inner, rows, aData) : new Matrix(rows, inner, aData);
+		Matrix b = bT ? new Matrix(columns, inner, bData) : new Matrix(inner, columns, bData);
+		Matrix out = new Matrix(rows, columns);
+		
+		for (int i = 0; i < WARMUP_REPETITIONS; i++) {
+			Matrix.dot(a, b, out, aT, bT);
+		}
+		out.getData();
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < REPETITIONS; i++) {
+			Matrix.dot(a, b, out, aT, bT);
+		}
+		float[] result = out.getData(); // waits for the queue to drain
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		double gflops = 2d * rows * inner * columns * REPETITIONS / seconds / 1e9;
+		double error = maxRelativeError(result, reference(aData, bData, rows, inner, columns, aT, bT));
+		
+		String operation = aT ? "dotAT" : bT ? "dotBT" : "dot";
+		System.out.println(operation + "," + rows + "," + columns + "," + inner + "," + String.format("%.2f", gflops) + "," + error);
+		
+		if (error > TOLERANCE) {
+			System.err.println(operation + " " + rows + "x" + columns + "x" + inner + " does not match the reference");
+		}
+		
+		a.release();
+		b.release();
+		out.release();
+		
+	}
+	
+	static double[] reference(float[] a, float[] b, int rows, int inner, int columns, boolean aT, boolean bT) {
+		
+		double[] out = new double[rows * columns];
+		for (int row = 0; row < rows; row++) {
+			for (int k = 0; k < inner; k++) {
+				
+				double aik = aT ? a[k * rows + row] : a[row * inner + k];
+				for (int column = 0; column < columns; column++) {
+					out[row * columns + column] += aik * (bT ? b[column * inner + k] : b[k * columns + column]);
+				}
+				
+			}
+		}
+		return out;
+		
+	}
+	
+	static double maxRelativeError(float[] actual, double[] expected) {
+		
+		double max = 0;
+		for (int i = 0; i < actual.length; i++) {
+			max = Math.max(max, Math.abs(actual[i] - expected[i]) / Math.max(1, Math.abs(expected[i])));
+		}
+		return max;
+		
+	}
+	
+	static float[] randomData(Random random, int size) {
+		
+		float[] data = new float[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (float) random.nextGaussian();
+		}
+		return data;
+		
+	}
+	
+}
@@ -0,0 +1,449 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Supplier;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Times every Matrix operation NeuralNetwork uses, the transfers to and from the backend, and
+ * NeuralNetwork.forward and getCostPrime, at the shapes a network with the given layer sizes uses
+ * for each of the given batch widths. Every result is checked against a reference computed on the
+ * host in double precision, so that a speedup can't hide a wrong answer. Operations that reduce a
+ * matrix to a number are compared relative to the sum of the magnitudes of what they add up, as
+ * their rounding error grows with it.
+ * 
+ * Each operation is repeated on the same matrices after being warmed up, and the time includes
+ * waiting for the queue to drain. DotBenchmark reports the same dot products in GFLOP/s
+ * 
+ * Usage: MatrixBenchmark [-l input,hidden,output] [-n hiddenLayers] [-b batch,batch,...]
+ * 
+ * @author Kacper
+ *
+ */
+public class MatrixBenchmark {
+	
+	private static final int WARMUP_REPETITIONS = 3;
+	private static final int REPETITIONS = 20;
+	
+	private static final double TOLERANCE = 1e-3;
+	
+	public static void main(String[] args) {
+		
+		int[] layerSizes = { 784, 1000, 10 };
+		int hiddenLayers = 2;
+		int[] batchSizes = { 1, 100, 600 };
+		
+		for (int i = 0; i < args.length; i++) {
+			
+			switch (args[i]) {
+			
+			case "-l":
+				
+				layerSizes = parse(args[++i]);
+				break;
+			
+			case "-n":
+				
+				hiddenLayers = Integer.valueOf(args[++i]);
+				break;
+			
+			case "-b":
+				
+				batchSizes = parse(args[++i]);
+				break;
+			
+			default:
+				
+				assert false;
+				break;
+				
+			}
+			
+		}
+		
+		assert layerSizes.length == 3 && hiddenLayers >= 1;
+		
+		Random random = new Random(0);
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		System.out.println("operation,shape,batch,microsPerCall,maxRelativeError");
+		
+		NeuralNetwork network = new NeuralNetwork(layerSizes[0], layerSizes[2], layerSizes[1], hiddenLayers, random);
+		
+		for (int batch : batchSizes) {
+			
+			for (int rows : layerSizes) {
+				elementwise(random, rows, batch);
+			}
+			
+			for (Matrix w : network.getW()) {
+				dots(random, w.getRows(), w.getColumns(), batch);
+			}
+			
+			network(random, network, batch);
+			
+		}
+		
+	}
+	
+	private static void elementwise(Random random, int rows, int columns) {
+		
+		int size = rows * columns;
+		float[] aData = DotBenchmark.randomData(random, size);
+		float[] bData = DotBenchmark.randomData(random, size);
+		float[] positiveData = uniform(random, size, 0.5, 1.5);
+		float[] sigmoidData = uniform(random, size, 0, 1);
+		
+		Matrix a = new Matrix(rows, columns, aData);
+		Matrix b = new Matrix(rows, columns, bData);
+		Matrix positive = new Matrix(rows, columns, positiveData);
+		Matrix sigmoid = new Matrix(rows, columns, sigmoidData);
+		Matrix out = new Matrix(rows, columns);
+		
+		time("multiplyScalar", rows, columns, () -> Matrix.multiply(2.5f, a, out), out::getData, map(aData, x -> 2.5 * x));
+		time("multiply", rows, columns, () -> Matrix.multiply(a, b, out), out::getData, map(aData, bData, (x, y) -> x * y));
+		time("divide", rows, columns, () -> Matrix.divide(a, positive, out), out::getData, map(aData, positiveData, (x, y) -> x / y));
+		time("add", rows, columns, () -> Matrix.add(a, b, out), out::getData, map(aData, bData, (x, y) -> x + y));
+		time("sub", rows, columns, () -> Matrix.sub(a, b, out), out::getData, map(aData, bData, (x, y) -> x - y));
+		time("pow", rows, columns, () -> Matrix.pow(a, 2, out), out::getData, map(aData, x -> x * x));
+		time("sigmoid", rows, columns, () -> Matrix.sigmoid(a, out), out::getData, map(aData, MatrixBenchmark::sigmoid));
+		time("sigmoidPrime", rows, columns, () -> Matrix.sigmoidPrime(sigmoid, out), out::getData, map(sigmoidData, x -> x * (1 - x)));
+		time("subSigmoidPrime", rows, columns, () -> Matrix.subSigmoidPrime(a, b, sigmoid, out), out::getData, subSigmoidPrime(aData, bData, sigmoidData));
+		
+		float[] result = new float[1];
+		time("sum", rows, columns, () -> result[0] = Matrix.sum(a), () -> result, new double[] { sum(map(aData, x -> x)) }, sum(map(aData, Math::abs)));
+		time("sumOfSquares", rows, columns, () -> result[0] = Matrix.sumOfSquares(a), () -> result, new double[] { sum(map(aData, x -> x * x)) }, sum(map(aData, x -> x * x)));
+		time("squaredError", rows, columns, () -> result[0] = Matrix.squaredError(a, b), () -> result, new double[] { sum(map(aData, bData, (x, y) -> (x - y) * (x - y))) }, sum(map(aData, bData, (x, y) -> (x - y) * (x - y))));
+		
+		float[][] read = new float[1][];
+		time("getData", rows, columns, () -> read[0] = a.getData(), () -> read[0], map(aData, x -> x));
+		time("setData", rows, columns, () -> out.setData(bData), out::getData, map(bData, x -> x));
+		time("setDataBuffer", rows, columns, () -> out.setData(buffer -> buffer.put(aData)), out::getData, map(aData, x -> x));
+		
+		a.release();
+		b.release();
+		positive.release();
+		sigmoid.release();
+		out.release();
+		
+	}
+	
+	/**
+	 * Times the products a layer of rows*inner weights takes part in with a batch of columns
+	 */
+	private static void dots(Random random, int rows, int inner, int columns) {
+		
+		float[] wData = DotBenchmark.randomData(random, rows * inner);
+		float[] xData = uniform(random, inner * columns, 0, 1);
+		float[] deltaData = DotBenchmark.randomData(random, rows * columns);
+		float[] activationData = uniform(random, inner * columns, 0, 1);
+		
+		Matrix w = new Matrix(rows, inner, wData);
+		Matrix x = new Matrix(inner, columns, xData);
+		Matrix delta = new Matrix(rows, columns, deltaData);
+		Matrix activation = new Matrix(inner, columns, activationData);
+		Matrix out = new Matrix(rows, columns);
+		Matrix backward = new Matrix(inner, columns);
+		Matrix gradient = new Matrix(rows, inner);
+		
+		double[] forward = DotBenchmark.reference(wData, xData, rows, inner, columns, false, false);
+		time("dot", rows, inner, columns, () -> Matrix.dot(w, x, out, false, false), out::getData, forward);
+		time("dotSigmoid", rows, inner, columns, () -> Matrix.dotSigmoid(w, x, out), out::getData, map(forward, MatrixBenchmark::sigmoid));
+		
+		double[] back = DotBenchmark.reference(wData, deltaData, inner, rows, columns, true, false);
+		time("dotAT", rows, inner, columns, () -> Matrix.dot(w, delta, backward, true, false), backward::getData, back);
+		for (int i = 0; i < back.length; i++) {
+			back[i] *= activationData[i] * (1 - activationData[i]);
+		}
+		time("dotATSigmoidPrime", rows, inner, columns, () -> Matrix.dotATSigmoidPrime(w, delta, activation, backward), backward::getData, back);
+		
+		time("dotBT", rows, inner, columns, () -> Matrix.dot(delta, x, gradient, false, true), gradient::getData, DotBenchmark.reference(deltaData, xData, rows, columns, inner, false, true));
+		
+		w.release();
+		x.release();
+		delta.release();
+		activation.release();
+		out.release();
+		backward.release();
+		gradient.release();
+		
+	}
+	
+	private static void network(Random random, NeuralNetwork network, int columns) {
+		
+		Matrix[] w = network.getW();
+		float[][] wData = new float[w.length][];
+		for (int i = 0; i < w.length; i++) {
+			wData[i] = w[i].getData();
+		}
+		
+		float[] x0Data = uniform(random, network.getInputLayerSize() * columns, 0, 1);
+		float[] yData = new float[network.getOutputLayerSize() * columns];
+		for (int column = 0; column < columns; column++) {
+			yData[random.nextInt(network.getOutputLayerSize()) * columns + column] = 1;
+		}
+		
+		Matrix x0 = new Matrix(network.getInputLayerSize(), columns, x0Data);
+		Matrix y = new Matrix(network.getOutputLayerSize(), columns, yData);
+		
+		// the activations of every layer, with the input first
+		double[][] x = new double[w.length + 1][];
+		x[0] = map(x0Data, value -> value);
+		for (int i = 0; i < w.length; i++) {
+			x[i + 1] = map(product(wData[i], x[i], w[i].getRows(), w[i].getColumns(), columns), MatrixBenchmark::sigmoid);
+		}
+		
+		String shape = network.getInputLayerSize() + "x" + network.getHiddenLayerSize() + "x" + network.getOutputLayerSize();
+		Matrix[] yHat = new Matrix[1];
+		time("forward", shape, columns, () -> yHat[0] = network.forward(x0), () -> yHat[0].getData(), x[w.length]);
+		
+		// back propagated from the output layer to the first, then laid out in the order of w
+		double[][] djdw = new double[w.length][];
+		double[] delta = new double[x[w.length].length];
+		for (int i = 0; i < delta.length; i++) {
+			delta[i] = (x[w.length][i] - yData[i]) * x[w.length][i] * (1 - x[w.length][i]);
+		}
+		for (int i = w.length - 1; i >= 0; i--) {
+			
+			int rows = w[i].getRows();
+			int inner = w[i].getColumns();
+			
+			djdw[i] = new double[rows * inner];
+			for (int row = 0; row < rows; row++) {
+				for (int k = 0; k < inner; k++) {
+					for (int column = 0; column < columns; column++) {
+						djdw[i][row * inner + k] += delta[row * columns + column] * x[i][k * columns + column];
+					}
+				}
+			}
+			
+			if (i > 0) {
+				
+				double[] previous = new double[inner * columns];
+				for (int row = 0; row < rows; row++) {
+					for (int k = 0; k < inner; k++) {
+						for (int column = 0; column < columns; column++) {
+							previous[k * columns + column] += wData[i][row * inner + k] * delta[row * columns + column];
+						}
+					}
+				}
+				for (int j = 0; j < previous.length; j++) {
+					previous[j] *= x[i][j] * (1 - x[i][j]);
+				}
+				delta = previous;
+				
+			}
+			
+		}
+		
+		Matrix[][] gradients = new Matrix[1][];
+		time("getCostPrime", shape, columns, () -> gradients[0] = network.getCostPrime(x0, y), () -> concatenate(gradients[0]), concatenate(djdw));
+		
+		x0.release();
+		y.release();
+		
+	}
+	
+	private static void time(String operation, int rows, int columns, Runnable op, Supplier<float[]> result, double[] expected) {
+		
+		time(operation, rows + "x" + columns, columns, op, result, expected);
+		
+	}
+	
+	private static void time(String operation, int rows, int inner, int columns, Runnable op, Supplier<float[]> result, double[] expected) {
+		
+		time(operation, rows + "x" + inner, columns, op, result, expected);
+		
+	}
+	
+	private static void time(String operation, String shape, int batch, Runnable op, Supplier<float[]> result, double[] expected) {
+		
+		double micros = measure(op);
+		report(operation, shape, batch, micros, DotBenchmark.maxRelativeError(result.get(), expected));
+		
+	}
+	
+	/**
+	 * Times an operation that reduces its input to one value, whose error is taken relative to
+	 * magnitude
+	 */
+	private static void time(String operation, int rows, int columns, Runnable op, Supplier<float[]> result, double[] expected, double magnitude) {
+		
+		double micros = measure(op);
+		report(operation, rows + "x" + columns, columns, micros, Math.abs(result.get()[0] - expected[0]) / Math.max(1, magnitude));
+		
+	}
+	
+	/**
+	 * Runs op until it is warmed up, then times it
+	 * 
+	 * @return the microseconds each call took
+	 */
+	private static double measure(Runnable op) {
+		
+		for (int i = 0; i < WARMUP_REPETITIONS; i++) {
+			op.run();
+		}
+		Matrix.finish();
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < REPETITIONS; i++) {
+			op.run();
+		}
+		Matrix.finish();
+		
+		return (System.nanoTime() - start) / 1e3 / REPETITIONS;
+		
+	}
+	
+	private static void report(String operation, String shape, int batch, double micros, double error) {
+		
+		System.out.println(operation + "," + shape + "," + batch + "," + String.format("%.1f", micros) + "," + error);
+		
+		if (error > TOLERANCE) {
+			System.err.println(operation + " " + shape + " with a batch of " + batch + " does not match the reference");
+		}
+		
+	}
+	
+	/**
+	 * @return a.b where a is rows*inner and b is inner*columns
+	 */
+	private static double[] product(float[] a, double[] b, int rows, int inner, int columns) {
+		
+		double[] out = new double[rows * columns];
+		for (int row = 0; row < rows; row++) {
+			for (int k = 0; k < inner; k++) {
+				
+				double aik = a[row * inner + k];
+				for (int column = 0; column < columns; column++) {
+					out[row * columns + column] += aik * b[k * columns + column];
+				}
+				
+			}
+		}
+		return out;
+		
+	}
+	
+	private static double[] subSigmoidPrime(float[] a, float[] b, float[] x) {
+		
+		double[] out = new double[a.length];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = ((double) a[i] - b[i]) * x[i] * (1 - x[i]);
+		}
+		return out;
+		
+	}
+	
+	private static double sigmoid(double x) {
+		
+		return 1 / (1 + Math.exp(-x));
+		
+	}
+	
+	private static double[] map(float[] a, DoubleUnaryOperator f) {
+		
+		double[] out = new double[a.length];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = f.applyAsDouble(a[i]);
+		}
+		return out;
+		
+	}
+	
+	private static double[] map(double[] a, DoubleUnaryOperator f) {
+		
+		double[] out = new double[a.length];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = f.applyAsDouble(a[i]);
+		}
+		return out;
+		
+	}
+	
+	private static double[] map(float[] a, float[] b, DoubleBinaryOperator f) {
+		
+		double[] out = new double[a.length];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = f.applyAsDouble(a[i], b[i]);
+		}
+		return out;
+		
+	}
+	
+	private static double sum(double[] a) {
+		
+		double sum = 0;
+		for (double value : a) {
+			sum += value;
+		}
+		return sum;
+		
+	}
+	
+	private static float[] concatenate(Matrix[] matrices) {
+		
+		int size = 0;
+		for (Matrix matrix : matrices) {
+			size += matrix.getSize();
+		}
+		
+		float[] out = new float[size];
+		int offset = 0;
+		for (Matrix matrix : matrices) {
+			
+			System.arraycopy(matrix.getData(), 0, out, offset, matrix.getSize());
+			offset += matrix.getSize();
+			
+		}
+		return out;
+		
+	}
+	
+	private static double[] concatenate(double[][] arrays) {
+		
+		int size = 0;
+		for (double[] array : arrays) {
+			size += array.length;
+		}
+		
+		double[] out = new double[size];
+		int offset = 0;
+		for (double[] array : arrays) {
+			
+			System.arraycopy(array, 0, out, offset, array.length);
+			offset += array.length;
+			
+		}
+		return out;
+		
+	}
+	
+	private static float[] uniform(Random random, int size, double min, double max) {
+		
+		float[] data = new float[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (float) (min + (max - min) * random.nextDouble());
+		}
+		return data;
+		
+	}
+	
+	private static int[] parse(String list) {
+		
+		String[] values = list.split(",");
+		int[] parsed = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			parsed[i] = Integer.valueOf(values[i]);
+		}
+		return parsed;
+		
+	}
+	
+}
@@ -0,0 +1,86 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import core.Matrix;
+import core.NeuralNetwork;
+import server.LatencyStats;
+import server.MicroBatcher;
+
+/**
+ * 
+ * Has many clients send single samples to a MicroBatcher at once, each waiting for its answer before
+ * sending the next, and reports the latencies and throughput for several longest waits. The
+ * network has the layer sizes Train uses
+ * 
+ * @author Kacper
+ *
+ */
+public class MicroBatchBenchmark {
+	
+	private static final int INPUT_LAYER_SIZE = 784;
+	private static final int HIDDEN_LAYER_SIZE = 1000;
+	private static final int OUTPUT_LAYER_SIZE = 10;
+	private static final int NUMBER_OF_HIDDEN_LAYERS = 2;
+	
+	private static final int MAX_BATCH = 64;
+	private static final long[] MAX_WAITS = { 0, 1, 2, 5 };
+	
+	private static final int CLIENTS = 32;
+	private static final int REQUESTS_PER_CLIENT = 20;
+	
+	public static void main(String[] args) throws Exception {
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		
+		Random random = new Random(0);
+		NeuralNetwork network = new NeuralNetwork(INPUT_LAYER_SIZE, OUTPUT_LAYER_SIZE, HIDDEN_LAYER_SIZE, NUMBER_OF_HIDDEN_LAYERS, random);
+		
+		float[][] samples = new float[CLIENTS][INPUT_LAYER_SIZE];
+		for (float[] sample : samples) {
+			for (int i = 0; i < sample.length; i++) {
+				sample[i] = random.nextFloat();
+			}
+		}
+		
+		System.out.println("maxWaitMillis,requestsPerSecond,p50Millis,p99Millis,meanBatch");
+		
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+		for (long maxWait : MAX_WAITS) {
+			
+			try (MicroBatcher batcher = new MicroBatcher(network, MAX_BATCH, maxWait, TimeUnit.MILLISECONDS)) {
+				
+				Future<?>[] tasks = new Future<?>[CLIENTS];
+				long start = System.nanoTime();
+				for (int c = 0; c < CLIENTS; c++) {
+					
+					float[] sample = samples[c];
+					tasks[c] = clients.submit(() -> {
+						
+						for (int i = 0; i < REQUESTS_PER_CLIENT; i++) {
+							batcher.submit(sample).join();
+						}
+						
+					});
+					
+				}
+				for (Future<?> task : tasks) {
+					task.get();
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				
+				LatencyStats stats = batcher.getStats();
+				System.out.println(maxWait + "," + String.format("%.1f", CLIENTS * REQUESTS_PER_CLIENT / seconds) + "," + String.format("%.2f", stats.getPercentile(50)) + "," + String.format("%.2f", stats.getPercentile(99)) + "," + String.format("%.1f", stats.getMeanBatchSize()));
+				
+			}
+			
+		}
+		clients.shutdown();
+		
+	}
+	
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import core.IdxReader;
+import core.Matrix;
+import core.NeuralNetwork;
+import trainers.Adam;
+import trainers.GradientDescent;
+import trainers.Momentum;
+import trainers.OptimisationMethod;
+import trainers.RMSProp;
+
+/**
+ * 
+ * Trains the network Train uses on MNIST with each optimisation method, from the same starting
+ * weights and with the same mini-batches, and reports how long each took to bring the cost of the
+ * testing data down to the target. The MNIST files are read from the working directory as in
+ * Train, and the proportion of the samples used can be given as the first argument
+ * 
+ * @author Kacper
+ *
+ */
+public class OptimiserComparison {
+	
+	private static final String TRAIN_IMAGES = "train-images.idx3-ubyte";
+	private static final String TRAIN_LABELS = "train-labels.idx1-ubyte";
+	private static final int TRAIN_SAMPLES = 60000;
+	
+	private static final String TEST_IMAGES = "t10k-images.idx3-ubyte";
+	private static final String TEST_LABELS = "t10k-labels.idx1-ubyte";
+	private static final int TEST_SAMPLES = 10000;
+	
+	private static final int HIDDEN_LAYER_SIZE = 1000;
+	private static final int HIDDEN_LAYER_AMOUNT = 2;
+	
+	private static final int MINIBATCH_SIZE = 100;
+	private static final double TARGET_COST = 0.1;
+	private static final int EVALUATE_EVERY = 50;
+	private static final double MAX_SECONDS = 300;
+	
+	public static void main(String[] args) throws IOException {
+		
+		double sampleProportion = args.length > 0 ? Double.valueOf(args[0]) : 0.1;
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		
+		int trainSamples = (int) Math.ceil(TRAIN_SAMPLES * sampleProportion);
+		int testSamples = (int) Math.ceil(TEST_SAMPLES * sampleProportion);
+		
+		Matrix xTraining = IdxReader.readImages(new File(TRAIN_IMAGES), trainSamples);
+		Matrix yTraining = IdxReader.readLabels(new File(TRAIN_LABELS), trainSamples, 10);
+		Matrix xTesting = IdxReader.readImages(new File(TEST_IMAGES), testSamples);
+		Matrix yTesting = IdxReader.readLabels(new File(TEST_LABELS), testSamples, 10);
+		
+		Map<String, Function<NeuralNetwork, OptimisationMethod>> methods = new LinkedHashMap<>();
+		methods.put("gradientDescent", network -> new GradientDescent(network, 0.01f));
+		methods.put("momentum", network -> new Momentum(network, 0.001f, 0.9f, false));
+		methods.put("nesterov", network -> new Momentum(network, 0.001f, 0.9f, true));
+		methods.put("rmsProp", network -> new RMSProp(network, 0.001f));
+		methods.put("adam", network -> new Adam(network, 0.001f));
+		
+		System.out.println("method,secondsToTarget,stepsToTarget,finalTestingCost");
+		
+		Matrix x = new Matrix(xTraining.getRows(), MINIBATCH_SIZE);
+		Matrix y = new Matrix(yTraining.getRows(), MINIBATCH_SIZE);
+		int miniBatches = trainSamples / MINIBATCH_SIZE;
+		
+		for (Map.Entry<String, Function<NeuralNetwork, OptimisationMethod>> method : methods.entrySet()) {
+			
+			NeuralNetwork network = new NeuralNetwork(xTraining.getRows(), yTraining.getRows(), HIDDEN_LAYER_SIZE, HIDDEN_LAYER_AMOUNT, new Random(0));
+			OptimisationMethod descentMethod = method.getValue().apply(network);
+			
+			long start = System.nanoTime();
+			double seconds = 0;
+			float testingCost = network.getCost(xTesting, yTesting);
+			int step = 0;
+			
+			while (testingCost > TARGET_COST && seconds < MAX_SECONDS) {
+				
+				Matrix.copyColumns(xTraining, (step % miniBatches) * MINIBATCH_SIZE, x);
+				Matrix.copyColumns(yTraining, (step % miniBatches) * MINIBATCH_SIZE, y);
+				descentMethod.descend(network.getW(), network.getCostPrime(x, y));
+				step++;
+				
+				if (step % EVALUATE_EVERY == 0) {
+					testingCost = network.getCost(xTesting, yTesting);
+					seconds = (System.nanoTime() - start) / 1e9;
+				}
+				
+			}
+			
+			boolean reached = testingCost <= TARGET_COST;
+			System.out.println(method.getKey() + "," + (reached ? String.format("%.2f", seconds) : "") + "," + (reached ? step : "") + "," + testingCost);
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import core.IdxReader;
+import core.Matrix;
+import core.Matrix.Precision;
+import core.NeuralNetwork;
+import trainers.GradientDescent;
+import trainers.OptimisationMethod;
+
+/**
+ * 
+ * Trains the network Train uses on MNIST in single and in half precision, and reports how fast each
+ * trains and runs forward, how well the trained network does on the testing data, and how much
+ * memory its matrices take. The default precision is fixed when Matrix is loaded, so each precision
+ * is run in its own JVM with the same arguments as this one. If "matrix.precision" is set only that
+ * precision is run, in this JVM.
+ * 
+ * The java backend only emulates half precision by rounding, so there the matrices take as much
+ * memory as in single precision whatever bytesInUse says. The MNIST files are read from the working
+ * directory as in Train, and the proportion of the samples used can be given as the first argument
+ * 
+ * @author Kacper
+ *
+ */
+public class PrecisionComparison {
+	
+	private static final String TRAIN_IMAGES = "train-images.idx3-ubyte";
+	private static final String TRAIN_LABELS = "train-labels.idx1-ubyte";
+	private static final int TRAIN_SAMPLES = 60000;
+	
+	private static final String TEST_IMAGES = "t10k-images.idx3-ubyte";
+	private static final String TEST_LABELS = "t10k-labels.idx1-ubyte";
+	private static final int TEST_SAMPLES = 10000;
+	
+	private static final int HIDDEN_LAYER_SIZE = 1000;
+	private static final int HIDDEN_LAYER_AMOUNT = 2;
+	
+	private static final int MINIBATCH_SIZE = 100;
+	private static final float LEARNING_RATE = 0.01f;
+	
+	private static final int WARMUP_STEPS = 20;
+	private static final int STEPS = 2000;
+	private static final int FORWARDS = 20;
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		
+		if (System.getProperty(Matrix.PRECISION_PROPERTY) != null) {
+			
+			run(args.length > 0 ? Double.valueOf(args[0]) : 0.1);
+			return;
+			
+		}
+		
+		System.out.println("precision,trainingSamplesPerSecond,forwardSamplesPerSecond,testingCost,accuracy,bytesInUse,skippedSteps");
+		
+		for (Precision precision : Precision.values()) {
+			
+			List<String> command = new ArrayList<>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+			command.add("-D" + Matrix.PRECISION_PROPERTY + "=" + precision.name().toLowerCase());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(PrecisionComparison.class.getName());
+			command.addAll(Arrays.asList(args));
+			
+			int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+			if (status != 0) {
+				System.err.println("Running in " + precision + " precision failed with status " + status);
+			}
+			
+		}
+		
+	}
+	
+	private static void run(double sampleProportion) throws IOException {
+		
+		int trainSamples = (int) Math.ceil(TRAIN_SAMPLES * sampleProportion);
+		int testSamples = (int) Math.ceil(TEST_SAMPLES * sampleProportion);
+		
+		Matrix xTraining = IdxReader.readImages(new File(TRAIN_IMAGES), trainSamples);
+		Matrix yTraining = IdxReader.readLabels(new File(TRAIN_LABELS), trainSamples, 10);
+		Matrix xTesting = IdxReader.readImages(new File(TEST_IMAGES), testSamples);
+		Matrix yTesting = IdxReader.readLabels(new File(TEST_LABELS), testSamples, 10);
+		
+		NeuralNetwork network = new NeuralNetwork(xTraining.getRows(), yTraining.getRows(), HIDDEN_LAYER_SIZE, HIDDEN_LAYER_AMOUNT, new Random(0));
+		OptimisationMethod descentMethod = new GradientDescent(network, LEARNING_RATE);
+		descentMethod.setLossScaling(Matrix.getDefaultPrecision() == Precision.HALF);
+		
+		Matrix x = new Matrix(xTraining.getRows(), MINIBATCH_SIZE);
+		Matrix y = new Matrix(yTraining.getRows(), MINIBATCH_SIZE);
+		int miniBatches = trainSamples / MINIBATCH_SIZE;
+		
+		long start = 0;
+		for (int step = 0; step < WARMUP_STEPS + STEPS; step++) {
+			
+			if (step == WARMUP_STEPS) {
+				Matrix.finish();
+				start = System.nanoTime();
+			}
+			
+			Matrix.copyColumns(xTraining, (step % miniBatches) * MINIBATCH_SIZE, x);
+			Matrix.copyColumns(yTraining, (step % miniBatches) * MINIBATCH_SIZE, y);
+			descentMethod.descend(network.getW(), network.getCostPrime(x, y));
+			
+		}
+		Matrix.finish();
+		double trainingSeconds = (System.nanoTime() - start) / 1e9;
+		
+		start = System.nanoTime();
+		Matrix yHat = null;
+		for (int i = 0; i < FORWARDS; i++) {
+			yHat = network.forward(xTesting);
+		}
+		Matrix.finish();
+		double forwardSeconds = (System.nanoTime() - start) / 1e9;
+		
+		float testingCost = network.getCost(xTesting, yTesting, yHat);
+		
+		int[] predicted = Matrix.columnArgmax(yHat);
+		int[] expected = Matrix.columnArgmax(yTesting);
+		int correct = 0;
+		for (int i = 0; i < predicted.length; i++) {
+			if (predicted[i] == expected[i]) {
+				correct++;
+			}
+		}
+		
+		System.out.println(Matrix.getDefaultPrecision().name().toLowerCase() + "," + String.format("%.1f", (double) MINIBATCH_SIZE * STEPS / trainingSeconds) + "," + String.format("%.1f", (double) testSamples * FORWARDS / forwardSeconds) + "," + testingCost + "," + String.format("%.4f", (double) correct / testSamples) + "," + Matrix.getPool().getBytesInUse() + "," + descentMethod.getSkippedSteps());
+		
+	}
+	
+}
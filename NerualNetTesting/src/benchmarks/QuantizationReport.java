@@ -0,0 +1,158 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import core.IdxReader;
+import core.Matrix;
+import core.NeuralNetwork;
+import core.QuantizedNetwork;
+
+/**
+ * 
+ * Quantizes a trained network, calibrated on a sample of the MNIST training data, and compares it
+ * with the original on the testing data. For each it reports the testing cost, the accuracy, how
+ * many samples it classifies the same as the original, the largest difference of any output from
+ * the original's, the bytes its weights take and the latency of forwarding one sample at a time.
+ * The quantized network is saved next to the original with ".q8" on the end of its name.
+ * 
+ * Usage: QuantizationReport [-n network] [-c calibrationSamples] [-t testSamples]
+ * 
+ * @author Kacper
+ *
+ */
+public class QuantizationReport {
+	
+	private static final String TRAIN_IMAGES = "train-images.idx3-ubyte";
+	
+	private static final String TEST_IMAGES = "t10k-images.idx3-ubyte";
+	private static final String TEST_LABELS = "t10k-labels.idx1-ubyte";
+	
+	private static final int LATENCY_SAMPLES = 1000;
+	
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		
+		String networkFile = "nets/network.nwk";
+		int calibrationSamples = 1000;
+		int testSamples = 10000;
+		
+		for (int i = 0; i < args.length; i++) {
+			
+			switch (args[i]) {
+			
+			case "-n":
+				
+				networkFile = args[++i];
+				break;
+			
+			case "-c":
+				
+				calibrationSamples = Integer.valueOf(args[++i]);
+				break;
+			
+			case "-t":
+				
+				testSamples = Integer.valueOf(args[++i]);
+				break;
+			
+			default:
+				
+				assert false;
+				break;
+				
+			}
+			
+		}
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		
+		NeuralNetwork network = NeuralNetwork.load(new File(networkFile));
+		
+		Matrix calibration = IdxReader.readImages(new File(TRAIN_IMAGES), calibrationSamples);
+		QuantizedNetwork quantized = QuantizedNetwork.quantize(network, calibration);
+		calibration.release();
+		quantized.save(new File(networkFile + ".q8"));
+		
+		Matrix xTesting = IdxReader.readImages(new File(TEST_IMAGES), testSamples);
+		Matrix yTesting = IdxReader.readLabels(new File(TEST_LABELS), testSamples, network.getOutputLayerSize());
+		int[] labels = Matrix.columnArgmax(yTesting);
+		
+		Matrix yHat = network.forward(xTesting);
+		float[] expected = yHat.getData();
+		int[] expectedClasses = Matrix.columnArgmax(yHat);
+		float cost = network.getCost(xTesting, yTesting, yHat);
+		
+		Matrix yHatQuantized = quantized.forward(xTesting);
+		float[] actual = yHatQuantized.getData();
+		int[] actualClasses = Matrix.columnArgmax(yHatQuantized);
+		float quantizedCost = 0.5f * Matrix.squaredError(yTesting, yHatQuantized) / testSamples;
+		
+		float maxDifference = 0;
+		for (int i = 0; i < expected.length; i++) {
+			maxDifference = Math.max(maxDifference, Math.abs(expected[i] - actual[i]));
+		}
+		
+		long weightBytes = 0;
+		for (Matrix w : network.getW()) {
+			weightBytes += (long) w.getPrecision().getBytes() * w.getSize();
+		}
+		
+		Matrix[] samples = new Matrix[Math.min(LATENCY_SAMPLES, testSamples)];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = Matrix.copyColumns(xTesting, i, new Matrix(xTesting.getRows(), 1));
+		}
+		Matrix.finish();
+		
+		double accuracy = matching(expectedClasses, labels);
+		double quantizedAccuracy = matching(actualClasses, labels);
+		
+		System.out.println("model,testingCost,accuracy,agreement,maxOutputDifference,weightBytes,batch1MedianMicros,batch1P99Micros");
+		double[] latencies = latencies(samples, network::forward);
+		System.out.println(network.getW()[0].getPrecision().name().toLowerCase() + "," + cost + "," + String.format("%.4f", accuracy) + ",1.0000,0," + weightBytes + "," + String.format("%.1f,%.1f", latencies[0], latencies[1]));
+		latencies = latencies(samples, quantized::forward);
+		System.out.println("int8," + quantizedCost + "," + String.format("%.4f", quantizedAccuracy) + "," + String.format("%.4f", matching(actualClasses, expectedClasses)) + "," + maxDifference + "," + quantized.getWeightBytes() + "," + String.format("%.1f,%.1f", latencies[0], latencies[1]));
+		System.out.println("accuracyDelta," + String.format("%+.4f", quantizedAccuracy - accuracy));
+		
+	}
+	
+	private static double matching(int[] a, int[] b) {
+		
+		int matching = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == b[i]) {
+				matching++;
+			}
+		}
+		return (double) matching / a.length;
+		
+	}
+	
+	/**
+	 * Forwards every sample on its own, reading each output back as a server would
+	 * 
+	 * @return the median and the 99th percentile in microseconds
+	 */
+	private static double[] latencies(Matrix[] samples, Function<Matrix, Matrix> forward) {
+		
+		// once through to warm up
+		for (Matrix sample : samples) {
+			forward.apply(sample).getData();
+		}
+		
+		long[] nanos = new long[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			
+			long start = System.nanoTime();
+			forward.apply(samples[i]).getData();
+			nanos[i] = System.nanoTime() - start;
+			
+		}
+		Arrays.sort(nanos);
+		
+		return new double[] { nanos[nanos.length / 2] / 1e3, nanos[(int) Math.min(nanos.length - 1, Math.ceil(nanos.length * 0.99) - 1)] / 1e3 };
+		
+	}
+	
+}
@@ -0,0 +1,297 @@
+package core;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import core.Matrix.Precision;
+
+/**
+ * 
+ * Keeps the storage of released matrices so that it can be handed to the next matrix of a similar
+ * size instead of asking the backend for new storage. Sizes are rounded up into buckets, a quarter
+ * of a power of two apart, so a buffer can be reused by any matrix of the same precision in its
+ * bucket.
+ * 
+ * Matrices should be released explicitly, or closed by try-with-resources, which returns their
+ * storage without waiting for the garbage collector. Storage of matrices that are only garbage
+ * collected is returned the next time the pool is used. Each thread queues operations on its own
+ * queue, so storage is only handed out again once everything any thread had queued before it was
+ * returned has run
+ * 
+ * @see Matrix#release()
+ * 
+ * @author Kacper
+ *
+ */
+public final class BufferPool {
+	
+	private final MatrixBackend backend;
+	
+	private final Map<Precision, Map<Integer, ArrayDeque<Object>>> free = new EnumMap<>(Precision.class);
+	
+	private final ReferenceQueue<Matrix> collected = new ReferenceQueue<>();
+	private final Set<Allocation> live = new HashSet<>();
+	
+	/**
+	 * Allocations whose commands have all finished, which are added to from the callbacks of the
+	 * backend and so aren't guarded by the pool
+	 */
+	private final Queue<Allocation> settled = new ConcurrentLinkedQueue<>();
+	
+	private long hits;
+	private long misses;
+	private long bytesInUse;
+	private long bytesPooled;
+	
+	BufferPool(MatrixBackend backend) {
+		
+		this.backend = backend;
+		
+	}
+	
+	/**
+	 * Rounds a size up to its bucket, which wastes at most a quarter of the storage
+	 */
+	static int bucketSize(int size) {
+		
+		if (size <= 16) {
+			return 16;
+		}
+		int step = Integer.highestOneBit(size - 1) / 4;
+		return (size + step - 1) / step * step;
+		
+	}
+	
+	/**
+	 * 
+	 * Gives storage for at least size values to a matrix, which is returned to the pool when the
+	 * allocation is released or the matrix is garbage collected
+	 * 
+	 * @param owner
+	 *            - the matrix that will use the storage
+	 * @param size
+	 *            - the amount of values needed
+	 * @param precision
+	 *            - how the values are stored
+	 * @return the allocation holding the storage
+	 */
+	synchronized Allocation acquire(Matrix owner, int size, Precision precision) {
+		
+		reclaimCollected();
+		
+		int bucket = bucketSize(size);
+		ArrayDeque<Object> buffers = free.computeIfAbsent(precision, k -> new HashMap<>()).get(bucket);
+		
+		Object buffer;
+		if (buffers != null && !buffers.isEmpty()) {
+			
+			buffer = buffers.pop();
+			bytesPooled -= bytes(bucket, precision);
+			hits++;
+			
+		} else {
+			
+			buffer = allocate(bucket, precision);
+			misses++;
+			
+		}
+		bytesInUse += bytes(bucket, precision);
+		
+		Allocation allocation = new Allocation(owner, buffer, bucket, precision, collected);
+		live.add(allocation);
+		return allocation;
+		
+	}
+	
+	private Object allocate(int bucket, Precision precision) {
+		
+		try {
+			
+			return backend.allocate(bucket, precision);
+			
+		} catch (RuntimeException | OutOfMemoryError e) {
+			
+			// the device may only be full of pooled buffers, so free them and try once more
+			trim();
+			return backend.allocate(bucket, precision);
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Returns the storage of an allocation to the pool, it must not be used afterwards
+	 * 
+	 * @param allocation
+	 *            - the allocation made by acquire
+	 */
+	synchronized void release(Allocation allocation) {
+		
+		allocation.clear();
+		if (live.remove(allocation)) {
+			
+			List<Allocation> released = new ArrayList<>();
+			released.add(allocation);
+			recycleWhenSettled(released);
+			
+		}
+		
+	}
+	
+	/**
+	 * Recycles allocations once every command queued so far has run, as commands queued on them by
+	 * other threads may still be running
+	 */
+	private void recycleWhenSettled(List<Allocation> allocations) {
+		
+		backend.barrier().thenRun(() -> settled.addAll(allocations));
+		
+	}
+	
+	private void recycle(Allocation allocation) {
+		
+		free.computeIfAbsent(allocation.precision, k -> new HashMap<>()).computeIfAbsent(allocation.bucket, k -> new ArrayDeque<>()).push(allocation.buffer);
+		bytesInUse -= bytes(allocation.bucket, allocation.precision);
+		bytesPooled += bytes(allocation.bucket, allocation.precision);
+		
+	}
+	
+	private void reclaimCollected() {
+		
+		List<Allocation> dead = new ArrayList<>();
+		Reference<? extends Matrix> reference;
+		while ((reference = collected.poll()) != null) {
+			if (live.remove(reference)) {
+				dead.add((Allocation) reference);
+			}
+		}
+		if (!dead.isEmpty()) {
+			recycleWhenSettled(dead);
+		}
+		
+		recycleSettled();
+		
+	}
+	
+	private void recycleSettled() {
+		
+		Allocation allocation;
+		while ((allocation = settled.poll()) != null) {
+			recycle(allocation);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Gives the storage of every matrix that is no longer used back to the backend
+	 *
+	 */
+	public synchronized void trim() {
+		
+		reclaimCollected();
+		
+		for (Map<Integer, ArrayDeque<Object>> buckets : free.values()) {
+			for (ArrayDeque<Object> buffers : buckets.values()) {
+				for (Object buffer : buffers) {
+					backend.release(buffer);
+				}
+			}
+		}
+		free.clear();
+		bytesPooled = 0;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many times storage was reused from the pool
+	 */
+	public synchronized long getHits() {
+		
+		return hits;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many times new storage had to be made by the backend
+	 */
+	public synchronized long getMisses() {
+		
+		return misses;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the bytes of storage held by matrices which have not been released, including those
+	 *         waiting to be garbage collected and those released whose commands haven't all run
+	 */
+	public synchronized long getBytesInUse() {
+		
+		recycleSettled();
+		return bytesInUse;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the bytes of storage kept in the pool for reuse
+	 */
+	public synchronized long getBytesPooled() {
+		
+		recycleSettled();
+		return bytesPooled;
+		
+	}
+	
+	@Override
+	public synchronized String toString() {
+		
+		return "hits=" + hits + ", misses=" + misses + ", bytesInUse=" + bytesInUse + ", bytesPooled=" + bytesPooled;
+		
+	}
+	
+	private static long bytes(int bucket, Precision precision) {
+		
+		return (long) precision.getBytes() * bucket;
+		
+	}
+	
+	/**
+	 * 
+	 * The storage given to one matrix. It does not keep the matrix reachable, and is queued once the
+	 * matrix has been garbage collected so that the storage can be reclaimed
+	 *
+	 */
+	static final class Allocation extends PhantomReference<Matrix> {
+		
+		final Object buffer;
+		final int bucket;
+		final Precision precision;
+		
+		private Allocation(Matrix owner, Object buffer, int bucket, Precision precision, ReferenceQueue<Matrix> queue) {
+			
+			super(owner, queue);
+			this.buffer = buffer;
+			this.bucket = bucket;
+			this.precision = precision;
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,182 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 
+ * Saves checkpoints of a network while it trains without holding up training. The weights are read
+ * back with Matrix.getDataAsync, which is queued after the step that was just taken, so training
+ * carries on queuing steps while they are transferred, and the file is written on a thread of its
+ * own.
+ * 
+ * A checkpoint is taken once enough iterations or enough time has passed since the last one. If
+ * the previous checkpoint is still being written it is put off until that has finished, so a slow
+ * disk never backs up behind training. Each checkpoint is written next to where it belongs and
+ * then renamed into place, so a crash never leaves a partly written file under its name. If asked
+ * to, only the newest of the checkpoints it has written are kept
+ * 
+ * @see ModelFile
+ * 
+ * @author Kacper
+ *
+ */
+public class Checkpointer implements AutoCloseable {
+	
+	private final File directory;
+	private final int everyIterations;
+	private final long everyNanos;
+	private final int keep;
+	
+	private final ExecutorService writer;
+	private final Deque<File> written = new ArrayDeque<>();
+	
+	private CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+	private int lastIteration;
+	private long lastTime;
+	
+	/**
+	 * 
+	 * @param directory
+	 *            - where the checkpoints are written
+	 * @param everyIterations
+	 *            - how many iterations there are between checkpoints, 0 for no limit
+	 * @param everySeconds
+	 *            - how long there is between checkpoints, 0 for no limit
+	 * @param keep
+	 *            - how many of the newest checkpoints are kept, 0 for all of them
+	 */
+	public Checkpointer(File directory, int everyIterations, double everySeconds, int keep) {
+		
+		assert everyIterations >= 0 && everySeconds >= 0 && keep >= 0;
+		
+		this.directory = directory;
+		this.everyIterations = everyIterations;
+		this.everyNanos = (long) (everySeconds * 1e9);
+		this.keep = keep;
+		
+		writer = Executors.newSingleThreadExecutor(runnable -> {
+			
+			Thread thread = new Thread(runnable, "Checkpointer");
+			thread.setDaemon(true);
+			return thread;
+			
+		});
+		
+		lastTime = System.nanoTime();
+		
+	}
+	
+	/**
+	 * 
+	 * Takes a checkpoint if one is due. This is meant to be called after every iteration
+	 * 
+	 * @param network
+	 *            - the network being trained
+	 * @param iteration
+	 *            - how many iterations it has been trained for
+	 * @return whether a checkpoint was taken
+	 */
+	public boolean iterated(NeuralNetwork network, int iteration) {
+		
+		boolean due = everyIterations > 0 && iteration - lastIteration >= everyIterations || everyNanos > 0 && System.nanoTime() - lastTime >= everyNanos;
+		if (!due || !pending.isDone()) {
+			return false;
+		}
+		
+		checkpoint(network, iteration);
+		return true;
+		
+	}
+	
+	/**
+	 * 
+	 * Takes a checkpoint whether or not one is due, after the previous one has been written
+	 * 
+	 * @param network
+	 *            - the network being trained
+	 * @param iteration
+	 *            - how many iterations it has been trained for, which the file is named after
+	 * @return a future completed once the checkpoint has been written
+	 */
+	public CompletableFuture<Void> checkpoint(NeuralNetwork network, int iteration) {
+		
+		lastIteration = iteration;
+		lastTime = System.nanoTime();
+		
+		Matrix[] w = network.getW();
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		CompletableFuture<float[]>[] reads = new CompletableFuture[w.length];
+		for (int i = 0; i < w.length; i++) {
+			reads[i] = w[i].getDataAsync();
+		}
+		
+		File file = new File(directory, String.format("network%08d.nwk", iteration));
+		pending = CompletableFuture.allOf(reads).thenCombine(pending, (read, previous) -> null).thenRunAsync(() -> {
+			
+			float[][] data = new float[reads.length][];
+			for (int i = 0; i < reads.length; i++) {
+				data[i] = reads[i].join();
+			}
+			
+			try {
+				write(network, data, file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			
+		}, writer).exceptionally(e -> {
+			
+			System.err.println("Failed to write the checkpoint " + file);
+			e.printStackTrace();
+			return null;
+			
+		});
+		
+		return pending;
+		
+	}
+	
+	private void write(NeuralNetwork network, float[][] data, File file) throws IOException {
+		
+		directory.mkdirs();
+		
+		File temporary = new File(directory, file.getName() + ".tmp");
+		ModelFile.write(network, data, temporary);
+		ModelFile.moveIntoPlace(temporary, file);
+		
+		written.remove(file);
+		written.add(file);
+		while (keep > 0 && written.size() > keep) {
+			Files.deleteIfExists(written.remove().toPath());
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Waits for the checkpoint being written, if there is one, and stops the thread that writes them
+	 *
+	 */
+	@Override
+	public void close() {
+		
+		pending.join();
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+	}
+	
+}
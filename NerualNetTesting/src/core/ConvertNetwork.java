@@ -0,0 +1,44 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 
+ * Converts networks that were serialized by an older version of NeuralNetwork.save into the binary
+ * format of ModelFile. Without an output the file is converted in place, by writing the new file
+ * next to it and then renaming it over the old one, so the old file is never left half written.
+ * Files already in the binary format are rewritten as they are
+ * 
+ * Usage: ConvertNetwork input [output]
+ * 
+ * @author Kacper
+ *
+ */
+public class ConvertNetwork {
+	
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		
+		if (args.length < 1 || args.length > 2) {
+			
+			System.err.println("Usage: ConvertNetwork input [output]");
+			System.exit(1);
+			
+		}
+		
+		File input = new File(args[0]);
+		File output = new File(args.length > 1 ? args[1] : args[0]);
+		
+		boolean converted = !ModelFile.isModelFile(input);
+		long inputBytes = input.length();
+		NeuralNetwork network = NeuralNetwork.load(input);
+		
+		File temporary = new File(output.getPath() + ".tmp");
+		network.save(temporary);
+		ModelFile.moveIntoPlace(temporary, output);
+		
+		System.out.println((converted ? "Converted " : "Rewrote ") + input + " to " + output + " (" + inputBytes + " bytes to " + output.length() + " bytes)");
+		
+	}
+	
+}
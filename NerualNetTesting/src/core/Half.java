@@ -0,0 +1,88 @@
+package core;
+
+/**
+ * 
+ * Converts between floats and the bits of IEEE 754 half precision floats, rounding to the nearest
+ * value with ties to even as OpenCL's vstore_half does
+ * 
+ * @author Kacper
+ *
+ */
+final class Half {
+	
+	private Half() {}
+	
+	static short fromFloat(float value) {
+		
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xff;
+		int mantissa = bits & 0x7fffff;
+		
+		if (exponent == 0xff) {
+			// infinity stays infinity and NaN stays NaN
+			return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		
+		int halfExponent = exponent - 127 + 15;
+		if (halfExponent >= 0x1f) {
+			return (short) (sign | 0x7c00);
+		}
+		
+		if (halfExponent <= 0) {
+			
+			// too small for a normal half, so it is stored as a multiple of 2^-24
+			if (halfExponent < -10) {
+				return (short) sign;
+			}
+			return (short) (sign | round(mantissa | 0x800000, 14 - halfExponent));
+			
+		}
+		
+		// rounding up may carry into the exponent, which correctly gives infinity at the top
+		return (short) (sign | round((halfExponent << 23) | mantissa, 13));
+		
+	}
+	
+	static float toFloat(short half) {
+		
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1f;
+		int mantissa = half & 0x3ff;
+		
+		if (exponent == 0x1f) {
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		}
+		if (exponent == 0) {
+			float subnormal = Math.scalb((float) mantissa, -24);
+			return sign == 0 ? subnormal : -subnormal;
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+		
+	}
+	
+	/**
+	 * @return the nearest value that can be stored in half precision
+	 */
+	static float round(float value) {
+		
+		return toFloat(fromFloat(value));
+		
+	}
+	
+	/**
+	 * Shifts bits right, rounding to the nearest with ties to even
+	 */
+	private static int round(int bits, int shift) {
+		
+		int result = bits >>> shift;
+		int remainder = bits & ((1 << shift) - 1);
+		int halfway = 1 << (shift - 1);
+		if (remainder > halfway || (remainder == halfway && (result & 1) != 0)) {
+			result++;
+		}
+		return result;
+		
+	}
+	
+}
@@ -0,0 +1,180 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * 
+ * Reads the IDX files the MNIST data set is stored in. The file is memory mapped and its bytes are
+ * converted in parallel straight into the storage of the matrix, so no copy of the data set is
+ * held on the heap.
+ * 
+ * An IDX file starts with two zero bytes, a byte giving the type of the values, which must be
+ * unsigned bytes, and a byte giving the amount of dimensions. The size of each dimension follows as
+ * a big endian int, and then the values themselves
+ * 
+ * @author Kacper
+ *
+ */
+public final class IdxReader {
+	
+	private static final int UNSIGNED_BYTE = 0x08;
+	
+	/**
+	 * How many samples each parallel task converts, few enough that the samples it reads stay in
+	 * the cache while it writes each row
+	 */
+	private static final int BLOCK = 64;
+	
+	private IdxReader() {}
+	
+	/**
+	 * 
+	 * Loads images with values from 0 to 255, which are scaled to between 0 and 1
+	 * 
+	 * @param file
+	 *            - an IDX file with three dimensions, the samples then the height and the width
+	 * @param samples
+	 *            - amount of samples that will be read from the start of the file
+	 * @return the matrix where each column is a sample and each row is a pixel
+	 * @throws IOException
+	 *             if the file can't be read or isn't an IDX file of images
+	 */
+	public static Matrix readImages(File file, int samples) throws IOException {
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			
+			int[] dimensions = readHeader(file, channel, 3, samples);
+			int pixels = dimensions[1] * dimensions[2];
+			int header = 4 + 4 * dimensions.length;
+			
+			MappedByteBuffer in = channel.map(MapMode.READ_ONLY, header, (long) samples * pixels);
+			
+			Matrix x = new Matrix(pixels, samples);
+			x.setData(out -> {
+				
+				// the file holds each sample in turn, whereas each sample is a column of the matrix
+				IntStream.range(0, (samples + BLOCK - 1) / BLOCK).parallel().forEach(block -> {
+					
+					int first = block * BLOCK;
+					int last = Math.min(first + BLOCK, samples);
+					for (int pixel = 0; pixel < pixels; pixel++) {
+						for (int sample = first; sample < last; sample++) {
+							out.put(pixel * samples + sample, (in.get(sample * pixels + pixel) & 0xff) / 255f);
+						}
+					}
+					
+				});
+				
+			});
+			return x;
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Loads labels as one hot columns
+	 * 
+	 * @param file
+	 *            - an IDX file with one dimension, the samples
+	 * @param samples
+	 *            - amount of samples that will be read from the start of the file
+	 * @param classes
+	 *            - amount of different labels, each of which must be less than this
+	 * @return the matrix where each column is a sample, with a one in the row of its label and zeros
+	 *         elsewhere
+	 * @throws IOException
+	 *             if the file can't be read, isn't an IDX file of labels, or has a label that is
+	 *             out of range
+	 */
+	public static Matrix readLabels(File file, int samples, int classes) throws IOException {
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			
+			int header = 4 + 4 * readHeader(file, channel, 1, samples).length;
+			
+			MappedByteBuffer in = channel.map(MapMode.READ_ONLY, header, samples);
+			for (int sample = 0; sample < samples; sample++) {
+				if ((in.get(sample) & 0xff) >= classes) {
+					throw new IOException(file + " has the label " + (in.get(sample) & 0xff) + " for sample " + sample + " but there are only " + classes + " classes");
+				}
+			}
+			
+			Matrix y = new Matrix(classes, samples);
+			y.setData(out -> {
+				
+				IntStream.range(0, (samples + BLOCK - 1) / BLOCK).parallel().forEach(block -> {
+					
+					int first = block * BLOCK;
+					int last = Math.min(first + BLOCK, samples);
+					for (int label = 0; label < classes; label++) {
+						for (int sample = first; sample < last; sample++) {
+							out.put(label * samples + sample, (in.get(sample) & 0xff) == label ? 1 : 0);
+						}
+					}
+					
+				});
+				
+			});
+			return y;
+			
+		}
+		
+	}
+	
+	/**
+	 * Checks the header of the file and that it is as long as the header says
+	 * 
+	 * @return the size of each dimension
+	 */
+	private static int[] readHeader(File file, FileChannel channel, int expectedDimensions, int samples) throws IOException {
+		
+		if (channel.size() < 4 + 4 * expectedDimensions) {
+			throw new IOException(file + " is too short to be an IDX file");
+		}
+		
+		MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, 4 + 4 * expectedDimensions);
+		if (header.get(0) != 0 || header.get(1) != 0) {
+			throw new IOException(file + " is not an IDX file");
+		}
+		if (header.get(2) != UNSIGNED_BYTE) {
+			throw new IOException(file + " holds values of type " + header.get(2) + " rather than unsigned bytes");
+		}
+		if (header.get(3) != expectedDimensions) {
+			throw new IOException(file + " has " + header.get(3) + " dimensions rather than " + expectedDimensions);
+		}
+		
+		int[] dimensions = new int[expectedDimensions];
+		long length = 1;
+		for (int i = 0; i < dimensions.length; i++) {
+			
+			dimensions[i] = header.getInt(4 + 4 * i);
+			if (dimensions[i] <= 0) {
+				throw new IOException(file + " has a dimension of size " + dimensions[i]);
+			}
+			length *= dimensions[i];
+			
+		}
+		
+		if (channel.size() != 4 + 4 * dimensions.length + length) {
+			throw new IOException(file + " is " + channel.size() + " bytes long but its header says it should be " + (4 + 4 * dimensions.length + length));
+		}
+		if (samples > dimensions[0]) {
+			throw new IOException(file + " only has " + dimensions[0] + " samples but " + samples + " were asked for");
+		}
+		if ((long) samples * length / dimensions[0] > Integer.MAX_VALUE) {
+			throw new IOException(samples + " samples from " + file + " are too many for one matrix");
+		}
+		
+		return dimensions;
+		
+	}
+	
+}
@@ -0,0 +1,657 @@
+package core;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * 
+ * Backend which keeps every matrix in a float[] on the heap and runs the operations on the common
+ * fork join pool, so that it works on machines without an OpenCL device
+ * 
+ * @author Kacper
+ *
+ */
+class JavaBackend implements MatrixBackend {
+	
+	/**
+	 * Below this many elements an operation is run on the calling thread as splitting it would cost
+	 * more than it saves
+	 */
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+	
+	private static float[] data(Matrix a) {
+		
+		return (float[]) a.buffer;
+		
+	}
+	
+	/**
+	 * Runs the operation for every index in [0, size), in parallel if the size is large enough
+	 */
+	private static void forEach(int size, int work, IntConsumer operation) {
+		
+		IntStream range = IntStream.range(0, size);
+		if ((long) size * work >= PARALLEL_THRESHOLD) {
+			range = range.parallel();
+		}
+		range.forEach(operation);
+		
+	}
+	
+	/**
+	 * Rounds what was just written to a matrix in half precision to the values it could hold
+	 */
+	private static void round(Matrix out) {
+		
+		if (out.getPrecision() == Matrix.Precision.HALF) {
+			
+			float[] outData = data(out);
+			forEach(out.getSize(), 1, i -> outData[i] = Half.round(outData[i]));
+			
+		}
+		
+	}
+	
+	@Override
+	public String getName() {
+		
+		return "java";
+		
+	}
+	
+	@Override
+	public Object allocate(int size, Matrix.Precision precision) {
+		
+		// half precision is only emulated by rounding, so it takes as much memory as single
+		return new float[size];
+		
+	}
+	
+	@Override
+	public void release(Object buffer) {}
+	
+	@Override
+	public Object allocateQuantized(byte[] values) {
+		
+		return values;
+		
+	}
+	
+	@Override
+	public void read(Matrix a, float[] data) {
+		
+		System.arraycopy(data(a), 0, data, 0, a.getSize());
+		
+	}
+	
+	@Override
+	public CompletableFuture<float[]> readAsync(Matrix a) {
+		
+		float[] data = new float[a.getSize()];
+		read(a, data);
+		return CompletableFuture.completedFuture(data);
+		
+	}
+	
+	@Override
+	public void write(Matrix a, float[] data) {
+		
+		System.arraycopy(data, 0, data(a), 0, a.getSize());
+		
+		round(a);
+		
+	}
+	
+	@Override
+	public void write(Matrix a, Consumer<FloatBuffer> writer) {
+		
+		writer.accept(FloatBuffer.wrap(data(a), 0, a.getSize()).slice());
+		
+		round(a);
+		
+	}
+	
+	@Override
+	public CompletableFuture<Void> marker() {
+		
+		// every operation has finished by the time it returns
+		return CompletableFuture.completedFuture(null);
+		
+	}
+	
+	@Override
+	public CompletableFuture<Void> barrier() {
+		
+		return CompletableFuture.completedFuture(null);
+		
+	}
+	
+	@Override
+	public void finish() {}
+	
+	@Override
+	public int getDeviceCount() {
+		
+		return 1;
+		
+	}
+	
+	@Override
+	public int getDevice() {
+		
+		return 0;
+		
+	}
+	
+	@Override
+	public void setDevice(int device) {
+		
+		if (device != 0) {
+			throw new IndexOutOfBoundsException("The java backend only has one device");
+		}
+		
+	}
+	
+	@Override
+	public void copy(Matrix a, Matrix out) {
+		
+		System.arraycopy(data(a), 0, data(out), 0, a.getSize());
+		
+	}
+	
+	@Override
+	public void copyColumns(Matrix a, int column, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] outData = data(out);
+		int columns = out.getColumns();
+		
+		for (int row = 0; row < out.getRows(); row++) {
+			System.arraycopy(aData, row * a.getColumns() + column, outData, row * columns, columns);
+		}
+		
+	}
+	
+	@Override
+	public void gradientDescent(Matrix w, Matrix master, Matrix djdw, float gradientScale, float learningRate) {
+		
+		float[] wData = data(w);
+		float[] masterData = data(master);
+		float[] gData = data(djdw);
+		
+		forEach(w.getSize(), 1, i -> {
+			
+			float value = masterData[i] - learningRate * gData[i] * gradientScale;
+			masterData[i] = value;
+			wData[i] = value;
+			
+		});
+		
+		round(w);
+		
+	}
+	
+	@Override
+	public void momentum(Matrix w, Matrix master, Matrix djdw, Matrix velocity, float gradientScale, float learningRate, float momentum, boolean nesterov) {
+		
+		float[] wData = data(w);
+		float[] masterData = data(master);
+		float[] gData = data(djdw);
+		float[] vData = data(velocity);
+		
+		forEach(w.getSize(), 1, i -> {
+			
+			float g = gData[i] * gradientScale;
+			float v = momentum * vData[i] + g;
+			vData[i] = v;
+			
+			float value = masterData[i] - learningRate * (nesterov ? g + momentum * v : v);
+			masterData[i] = value;
+			wData[i] = value;
+			
+		});
+		
+		round(w);
+		
+	}
+	
+	@Override
+	public void rmsProp(Matrix w, Matrix master, Matrix djdw, Matrix meanSquare, float gradientScale, float learningRate, float decay, float epsilon) {
+		
+		float[] wData = data(w);
+		float[] masterData = data(master);
+		float[] gData = data(djdw);
+		float[] sData = data(meanSquare);
+		
+		forEach(w.getSize(), 1, i -> {
+			
+			float g = gData[i] * gradientScale;
+			float s = decay * sData[i] + (1 - decay) * g * g;
+			sData[i] = s;
+			
+			float value = masterData[i] - learningRate * g / ((float) Math.sqrt(s) + epsilon);
+			masterData[i] = value;
+			wData[i] = value;
+			
+		});
+		
+		round(w);
+		
+	}
+	
+	@Override
+	public void adam(Matrix w, Matrix master, Matrix djdw, Matrix m, Matrix v, float gradientScale, float learningRate, float beta1, float beta2, float epsilon, int step) {
+		
+		float[] wData = data(w);
+		float[] masterData = data(master);
+		float[] gData = data(djdw);
+		float[] mData = data(m);
+		float[] vData = data(v);
+		
+		float correction1 = (float) (1 / (1 - Math.pow(beta1, step)));
+		float correction2 = (float) (1 / (1 - Math.pow(beta2, step)));
+		
+		forEach(w.getSize(), 1, i -> {
+			
+			float g = gData[i] * gradientScale;
+			float mi = beta1 * mData[i] + (1 - beta1) * g;
+			float vi = beta2 * vData[i] + (1 - beta2) * g * g;
+			mData[i] = mi;
+			vData[i] = vi;
+			
+			float value = masterData[i] - learningRate * mi * correction1 / ((float) Math.sqrt(vi * correction2) + epsilon);
+			masterData[i] = value;
+			wData[i] = value;
+			
+		});
+		
+		round(w);
+		
+	}
+	
+	@Override
+	public void gatherColumns(Matrix a, Matrix indices, int offset, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] indicesData = data(indices);
+		float[] outData = data(out);
+		int columns = out.getColumns();
+		
+		forEach(out.getRows(), columns, row -> {
+			for (int col = 0; col < columns; col++) {
+				outData[row * columns + col] = aData[row * a.getColumns() + (int) indicesData[offset + col]];
+			}
+		});
+		
+	}
+	
+	@Override
+	public void dot(Matrix a, Matrix b, Matrix out, boolean aT, boolean bT) {
+		
+		dot(a, b, out, aT, bT, false, null);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void dotSigmoid(Matrix a, Matrix b, Matrix out) {
+		
+		dot(a, b, out, false, false, true, null);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void dotSigmoid(QuantizedMatrix a, Matrix b, float bScale, Matrix out) {
+		
+		byte[] aData = (byte[]) a.buffer;
+		float[] scales = data(a.scales);
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		int mdim = out.getRows();
+		int ndim = out.getColumns();
+		int pdim = a.getColumns();
+		
+		byte[] bQuantized = new byte[b.getSize()];
+		forEach(bQuantized.length, 1, i -> bQuantized[i] = QuantizedMatrix.quantize(bData[i], bScale));
+		
+		// each task produces one row of out, adding each weight times a row of b to the sums
+		forEach(mdim, ndim * pdim, row -> {
+			
+			int[] acc = new int[ndim];
+			for (int k = 0; k < pdim; k++) {
+				
+				int weight = aData[row * pdim + k];
+				if (weight != 0) {
+					for (int col = 0; col < ndim; col++) {
+						acc[col] += weight * bQuantized[k * ndim + col];
+					}
+				}
+				
+			}
+			
+			float scale = scales[row] * bScale;
+			for (int col = 0; col < ndim; col++) {
+				outData[row * ndim + col] = sigmoid(acc[col] * scale);
+			}
+			
+		});
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void dotATSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out) {
+		
+		dot(a, b, out, true, false, false, x);
+		
+		round(out);
+		
+	}
+	
+	/**
+	 * Computes op(a).op(b), optionally applying the sigmoid or multiplying by the derivative of the
+	 * sigmoid at x to each row of out while it is still in the cache
+	 */
+	private void dot(Matrix a, Matrix b, Matrix out, boolean aT, boolean bT, boolean sigmoid, Matrix x) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		float[] outData = data(out);
+		float[] xData = x == null ? null : data(x);
+		
+		int mdim = out.getRows();
+		int ndim = out.getColumns();
+		int pdim = aT ? a.getRows() : a.getColumns();
+		
+		// each task produces one row of out, walking a and b in the order they are stored
+		if (bT) {
+			
+			forEach(mdim, ndim * pdim, row -> {
+				
+				for (int col = 0; col < ndim; col++) {
+					
+					float tmp = 0;
+					for (int k = 0; k < pdim; k++) {
+						tmp += aData[row * pdim + k] * bData[col * pdim + k];
+					}
+					outData[row * ndim + col] = tmp;
+					
+				}
+				
+			});
+			
+		} else {
+			
+			forEach(mdim, ndim * pdim, row -> {
+				
+				int offset = row * ndim;
+				for (int col = 0; col < ndim; col++) {
+					outData[offset + col] = 0;
+				}
+				
+				for (int k = 0; k < pdim; k++) {
+					
+					float aik = aT ? aData[k * mdim + row] : aData[row * pdim + k];
+					int bOffset = k * ndim;
+					for (int col = 0; col < ndim; col++) {
+						outData[offset + col] += aik * bData[bOffset + col];
+					}
+					
+				}
+				
+				if (sigmoid) {
+					for (int col = 0; col < ndim; col++) {
+						outData[offset + col] = sigmoid(outData[offset + col]);
+					}
+				} else if (xData != null) {
+					for (int col = 0; col < ndim; col++) {
+						outData[offset + col] *= sigmoidPrime(xData[offset + col]);
+					}
+				}
+				
+			});
+			
+		}
+		
+	}
+	
+	@Override
+	public void multiply(float a, Matrix b, Matrix out) {
+		
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		forEach(b.getSize(), 1, i -> outData[i] = a * bData[i]);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void multiply(Matrix a, Matrix b, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = aData[i] * bData[i]);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void pow(Matrix a, float b, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = (float) Math.pow(aData[i], b));
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void divide(Matrix a, Matrix b, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = aData[i] / bData[i]);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void divide(float a, Matrix b, Matrix out) {
+		
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		forEach(b.getSize(), 1, i -> outData[i] = a / bData[i]);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void divide(Matrix a, float b, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = aData[i] / b);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void add(Matrix a, Matrix b, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = aData[i] + bData[i]);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public void sub(Matrix a, Matrix b, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = aData[i] - bData[i]);
+		
+		round(out);
+		
+	}
+	
+	@Override
+	public float sum(Matrix a) {
+		
+		float[] data = data(a);
+		
+		return (float) IntStream.range(0, a.getSize()).parallel().mapToDouble(i -> {
+			return data[i];
+		}).sum();
+		
+	}
+	
+	@Override
+	public CompletableFuture<Float> sumAsync(Matrix a) {
+		
+		return CompletableFuture.completedFuture(sum(a));
+		
+	}
+	
+	@Override
+	public float sumOfSquares(Matrix a) {
+		
+		float[] data = data(a);
+		
+		return (float) IntStream.range(0, a.getSize()).parallel().mapToDouble(i -> {
+			return data[i] * data[i];
+		}).sum();
+		
+	}
+	
+	@Override
+	public CompletableFuture<Float> sumOfSquaresAsync(Matrix a) {
+		
+		return CompletableFuture.completedFuture(sumOfSquares(a));
+		
+	}
+	
+	@Override
+	public float squaredError(Matrix a, Matrix b) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		
+		return (float) IntStream.range(0, a.getSize()).parallel().mapToDouble(i -> {
+			float difference = aData[i] - bData[i];
+			return difference * difference;
+		}).sum();
+		
+	}
+	
+	@Override
+	public CompletableFuture<Float> squaredErrorAsync(Matrix a, Matrix b) {
+		
+		return CompletableFuture.completedFuture(squaredError(a, b));
+		
+	}
+	
+	@Override
+	public void columnMax(Matrix a, float[] max, int[] argmax) {
+		
+		float[] data = data(a);
+		int rows = a.getRows();
+		int columns = a.getColumns();
+		
+		forEach(columns, rows, column -> {
+			
+			int best = 0;
+			for (int row = 1; row < rows; row++) {
+				if (data[row * columns + column] > data[best * columns + column]) {
+					best = row;
+				}
+			}
+			max[column] = data[best * columns + column];
+			argmax[column] = best;
+			
+		});
+		
+	}
+	
+	@Override
+	public void sigmoid(Matrix a, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = sigmoid(aData[i]));
+		
+		round(out);
+		
+	}
+	
+	private static float sigmoid(float x) {
+		
+		return (float) (1 / (1 + Math.exp(-x)));
+		
+	}
+	
+	@Override
+	public void sigmoidPrime(Matrix a, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = sigmoidPrime(aData[i]));
+		
+		round(out);
+		
+	}
+	
+	/**
+	 * The derivative of the sigmoid in terms of its output
+	 */
+	private static float sigmoidPrime(float sigmoid) {
+		
+		return sigmoid * (1 - sigmoid);
+		
+	}
+	
+	@Override
+	public void subSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out) {
+		
+		float[] aData = data(a);
+		float[] bData = data(b);
+		float[] xData = data(x);
+		float[] outData = data(out);
+		
+		forEach(a.getSize(), 1, i -> outData[i] = (aData[i] - bData[i]) * sigmoidPrime(xData[i]));
+		
+		round(out);
+		
+	}
+	
+}
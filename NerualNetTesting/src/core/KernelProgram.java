@@ -0,0 +1,318 @@
+package core;
+
+import static org.jocl.CL.CL_DEVICE_NAME;
+import static org.jocl.CL.CL_DEVICE_VENDOR;
+import static org.jocl.CL.CL_DEVICE_VERSION;
+import static org.jocl.CL.CL_DRIVER_VERSION;
+import static org.jocl.CL.CL_PROGRAM_BINARIES;
+import static org.jocl.CL.CL_PROGRAM_BINARY_SIZES;
+import static org.jocl.CL.CL_PROGRAM_BUILD_LOG;
+import static org.jocl.CL.clBuildProgram;
+import static org.jocl.CL.clCreateKernel;
+import static org.jocl.CL.clCreateProgramWithBinary;
+import static org.jocl.CL.clCreateProgramWithSource;
+import static org.jocl.CL.clGetDeviceInfo;
+import static org.jocl.CL.clGetProgramBuildInfo;
+import static org.jocl.CL.clGetProgramInfo;
+import static org.jocl.CL.clReleaseProgram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_context;
+import org.jocl.cl_device_id;
+import org.jocl.cl_kernel;
+import org.jocl.cl_program;
+
+/**
+ * 
+ * All of the kernels compiled together as one OpenCL program. The sources are read from the
+ * classpath straight away, but the program is only built once the first kernel is asked for.
+ * 
+ * There is one program for each precision matrices can be stored in. Every kernel loads and stores
+ * matrices through the macros in kernels/storage.cl, which for half precision convert with
+ * vload_half and vstore_half, so the arithmetic is done in single precision either way
+ * 
+ * The compiled program is saved in the directory given by the system property
+ * "matrix.opencl.cache", by default .neuralnet/kernels in the home directory, under a hash of the
+ * devices, their driver and the sources. Later runs on the same machine load it from there instead of
+ * compiling the sources again. Setting the property to an empty string turns the cache off
+ * 
+ * @see OpenCLBackend
+ * 
+ * @author Kacper
+ *
+ */
+final class KernelProgram {
+	
+	public static final String CACHE_PROPERTY = "matrix.opencl.cache";
+	
+	/**
+	 * Every kernel in the program, each of which is in kernels/name.cl next to this class
+	 */
+	private static final String HEADER = "storage";
+	
+	private static final String[] KERNELS = {
+			"matmul", "matsig", "matsigprime", "matadd", "matsub", "fltmul", "matpow", "matfltdiv", "fltmatdiv", "matmatdiv",
+			"matdot", "matdotat", "matdotbt", "matdotnaive", "matdotatnaive", "matdotbtnaive",
+			"matdotsig", "matdotatsigprime", "matsubsigprime", "matdotsigq",
+			"matsum", "matsqdiff", "matcolmax", "matgather",
+			"matsgd", "matmomentum", "matrmsprop", "matadam" };
+	
+	private final cl_context context;
+	private final cl_device_id[] devices;
+	
+	private final String source;
+	private final Path cacheFile;
+	
+	private cl_program program;
+	
+	KernelProgram(cl_context context, cl_device_id[] devices, Matrix.Precision precision) throws IOException {
+		
+		this.context = context;
+		this.devices = devices;
+		
+		StringBuilder source = new StringBuilder();
+		if (precision == Matrix.Precision.HALF) {
+			source.append("#define STORAGE_HALF\n");
+		}
+		source.append(readSource(HEADER)).append("\n");
+		for (String kernel : KERNELS) {
+			source.append(readSource(kernel)).append("\n");
+		}
+		this.source = source.toString();
+		
+		String directory = System.getProperty(CACHE_PROPERTY, Paths.get(System.getProperty("user.home"), ".neuralnet", "kernels").toString());
+		cacheFile = directory.isEmpty() ? null : Paths.get(directory, cacheKey() + ".bin");
+		
+	}
+	
+	private static String readSource(String kernel) throws IOException {
+		
+		InputStream in = KernelProgram.class.getResourceAsStream("kernels/" + kernel + ".cl");
+		if (in == null) {
+			throw new FileNotFoundException("The kernel " + kernel + " is not on the classpath");
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				sb.append(line).append("\n");
+			}
+		}
+		return sb.toString();
+		
+	}
+	
+	/**
+	 * A binary is only valid for the device and driver that compiled it, so both are part of the key
+	 * along with the sources
+	 */
+	private String cacheKey() {
+		
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		
+		for (cl_device_id device : devices) {
+			for (int param : new int[] { CL_DEVICE_NAME, CL_DEVICE_VENDOR, CL_DEVICE_VERSION, CL_DRIVER_VERSION }) {
+				digest.update(getDeviceString(device, param).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) 0);
+			}
+		}
+		digest.update(source.getBytes(StandardCharsets.UTF_8));
+		
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+		
+	}
+	
+	/**
+	 * Creates a new instance of a kernel, building the program first if this is the first one
+	 */
+	synchronized cl_kernel createKernel(String kernel) {
+		
+		if (program == null) {
+			program = build();
+		}
+		
+		return clCreateKernel(program, kernel, null);
+		
+	}
+	
+	private cl_program build() {
+		
+		if (cacheFile != null && Files.isRegularFile(cacheFile)) {
+			try {
+				return buildFromBinaries(readBinaries());
+			} catch (IOException | CLException e) {
+				// the binary is unreadable or the driver rejected it, so it is compiled again and
+				// replaced
+			}
+		}
+		
+		cl_program program = clCreateProgramWithSource(context, 1, new String[] { source }, null, null);
+		try {
+			clBuildProgram(program, 0, null, null, null, null);
+		} catch (CLException e) {
+			throw new IllegalStateException("Unable to build the kernels\n" + getBuildLog(program), e);
+		}
+		
+		if (cacheFile != null) {
+			save(program);
+		}
+		
+		return program;
+		
+	}
+	
+	private cl_program buildFromBinaries(byte[][] binaries) {
+		
+		long[] lengths = new long[binaries.length];
+		for (int i = 0; i < binaries.length; i++) {
+			lengths[i] = binaries[i].length;
+		}
+		
+		cl_program program = clCreateProgramWithBinary(context, devices.length, devices, lengths, binaries, new int[devices.length], null);
+		try {
+			clBuildProgram(program, devices.length, devices, null, null, null);
+		} catch (CLException e) {
+			clReleaseProgram(program);
+			throw e;
+		}
+		return program;
+		
+	}
+	
+	/**
+	 * Reads the binary for each device, which are stored one after another each following its length
+	 */
+	private byte[][] readBinaries() throws IOException {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+			
+			byte[][] binaries = new byte[in.readInt()][];
+			if (binaries.length != devices.length) {
+				throw new IOException("The cache holds binaries for " + binaries.length + " devices");
+			}
+			for (int i = 0; i < binaries.length; i++) {
+				binaries[i] = new byte[in.readInt()];
+				in.readFully(binaries[i]);
+			}
+			return binaries;
+			
+		}
+		
+	}
+	
+	/**
+	 * Writes the binaries of the program to the cache. They are written to a temporary file which is
+	 * then renamed, so that another process never reads half of it
+	 */
+	private void save(cl_program program) {
+		
+		long[] sizes = new long[devices.length];
+		clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t * sizes.length, Pointer.to(sizes), null);
+		
+		byte[][] binaries = new byte[sizes.length][];
+		Pointer[] pointers = new Pointer[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			if (sizes[i] == 0) {
+				return;
+			}
+			binaries[i] = new byte[(int) sizes[i]];
+			pointers[i] = Pointer.to(binaries[i]);
+		}
+		clGetProgramInfo(program, CL_PROGRAM_BINARIES, Sizeof.POINTER * pointers.length, Pointer.to(pointers), null);
+		
+		Path temporary = null;
+		try {
+			
+			Files.createDirectories(cacheFile.getParent());
+			temporary = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+				out.writeInt(binaries.length);
+				for (byte[] binary : binaries) {
+					out.writeInt(binary.length);
+					out.write(binary);
+				}
+			}
+			Files.move(temporary, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+		} catch (IOException e) {
+			
+			System.err.println("Unable to cache the compiled kernels in " + cacheFile + " (" + e + ")");
+			
+			if (temporary != null) {
+				temporary.toFile().delete();
+			}
+			
+		}
+		
+	}
+	
+	private static String getDeviceString(cl_device_id device, int param) {
+		
+		long[] size = new long[1];
+		clGetDeviceInfo(device, param, 0, null, size);
+		byte[] value = new byte[(int) size[0]];
+		clGetDeviceInfo(device, param, value.length, Pointer.to(value), null);
+		
+		return toString(value);
+		
+	}
+	
+	private String getBuildLog(cl_program program) {
+		
+		StringBuilder logs = new StringBuilder();
+		for (cl_device_id device : devices) {
+			
+			long[] size = new long[1];
+			clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG, 0, null, size);
+			byte[] log = new byte[(int) size[0]];
+			clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG, log.length, Pointer.to(log), null);
+			logs.append(toString(log)).append("\n");
+			
+		}
+		return logs.toString();
+		
+	}
+	
+	/**
+	 * Converts a null terminated string returned by OpenCL
+	 */
+	private static String toString(byte[] value) {
+		
+		int length = 0;
+		while (length < value.length && value[length] != 0) {
+			length++;
+		}
+		return new String(value, 0, length, StandardCharsets.US_ASCII);
+		
+	}
+	
+}
@@ -1,183 +1,146 @@
 package core;
 
-import static org.jocl.CL.CL_CONTEXT_PLATFORM;
-import static org.jocl.CL.*;
-import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
-import static org.jocl.CL.CL_MEM_READ_WRITE;
-import static org.jocl.CL.CL_TRUE;
-import static org.jocl.CL.clBuildProgram;
-import static org.jocl.CL.clCreateBuffer;
-import static org.jocl.CL.clCreateCommandQueue;
-import static org.jocl.CL.clCreateContext;
-import static org.jocl.CL.clCreateKernel;
-import static org.jocl.CL.clCreateProgramWithSource;
-import static org.jocl.CL.clEnqueueNDRangeKernel;
-import static org.jocl.CL.clEnqueueReadBuffer;
-import static org.jocl.CL.clEnqueueWriteBuffer;
-import static org.jocl.CL.clGetDeviceIDs;
-import static org.jocl.CL.clGetPlatformIDs;
-import static org.jocl.CL.clReleaseMemObject;
-import static org.jocl.CL.clSetKernelArg;
-
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
-import java.util.stream.IntStream;
-
-import org.jocl.CL;
-import org.jocl.Pointer;
-import org.jocl.Sizeof;
-import org.jocl.cl_command_queue;
-import org.jocl.cl_context;
-import org.jocl.cl_context_properties;
-import org.jocl.cl_device_id;
-import org.jocl.cl_kernel;
-import org.jocl.cl_mem;
-import org.jocl.cl_platform_id;
-import org.jocl.cl_program;
 
-@SuppressWarnings("deprecation")
-public class Matrix implements Serializable {
+/**
+ * 
+ * A matrix of floats stored in row major order. The storage and the operations are provided by a
+ * MatrixBackend which is chosen once at startup from the system property "matrix.backend", which
+ * can be "opencl" or "java". If it is not set OpenCL is used when it is available and the pure
+ * java backend otherwise.
+ * 
+ * Operations may be called from several threads at once. Each thread queues its operations
+ * separately though, so a matrix written by one thread must be finished before another thread uses
+ * it.
+ * 
+ * Each matrix is stored in either single or half precision, the default being chosen by the system
+ * property "matrix.precision", which can be "single" or "half". Half precision halves the memory
+ * and bandwidth a matrix takes, while every operation still computes in single precision. The
+ * matrices an operation combines must all have the same precision, apart from the weights and state
+ * of the optimisation methods, which are kept in single precision
+ * 
+ * @see MatrixBackend
+ * 
+ * @author Kacper
+ *
+ */
+public class Matrix implements Serializable, AutoCloseable {
 	
 	private static final long serialVersionUID = 1L;
 	
-	private static cl_context context;
-	private static cl_command_queue commandQueue;
-	
-	private static cl_kernel mulKernel;
-	private static cl_kernel sigKernel;
-	private static cl_kernel sigPrimeKernel;
-	private static cl_kernel dotKernel;
-	private static cl_kernel addKernel;
-	private static cl_kernel subKernel;
-	private static cl_kernel matFltDivKernel;
-	private static cl_kernel fltMatDivKernel;
-	private static cl_kernel matMatDivKernel;
-	private static cl_kernel fltMulKernel;
-	private static cl_kernel matPowKernel;
-	private static cl_kernel dotATKernel;
-	private static cl_kernel dotBTKernel;
-	
-	private static long[] global = new long[2];
-	private static long[] local = new long[2];
+	public static final String BACKEND_PROPERTY = "matrix.backend";
+	public static final String PRECISION_PROPERTY = "matrix.precision";
+	
+	private static final MatrixBackend backend = createBackend(System.getProperty(BACKEND_PROPERTY));
+	private static final BufferPool pool = new BufferPool(backend);
+	
+	private static final Precision defaultPrecision = Precision.valueOf(System.getProperty(PRECISION_PROPERTY, "single").toUpperCase());
 	
 	private int rows;
 	private int columns;
 	
 	private int size;
 	
-	private transient cl_mem mData;
+	/**
+	 * Not serialized, so a matrix is loaded in the default precision whatever it was saved in
+	 */
+	private transient Precision precision;
 	
-	static {
-		
-		CL.setExceptionsEnabled(true);
-		
-		final int platformIndex = 0;
-		final long deviceType = CL_DEVICE_TYPE_ALL;
-		final int deviceIndex = 0;
-		
-		// Enable exceptions and subsequently omit error checks in this sample
-		CL.setExceptionsEnabled(true);
-		
-		// Obtain the number of platforms
-		int numPlatformsArray[] = new int[1];
-		clGetPlatformIDs(0, null, numPlatformsArray);
-		int numPlatforms = numPlatformsArray[0];
-		
-		// Obtain a platform ID
-		cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
-		clGetPlatformIDs(platforms.length, platforms, null);
-		cl_platform_id platform = platforms[platformIndex];
-		
-		// Initialize the context properties
-		cl_context_properties contextProperties = new cl_context_properties();
-		contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-		
-		// Obtain the number of devices for the platform
-		int numDevicesArray[] = new int[1];
-		clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
-		int numDevices = numDevicesArray[0];
-		
-		// Obtain a device ID
-		cl_device_id devices[] = new cl_device_id[numDevices];
-		clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-		cl_device_id device = devices[deviceIndex];
-		
-		// Create a context for the selected device
-		context = clCreateContext(contextProperties, 1, new cl_device_id[] { device }, null, null, null);
+	transient Object buffer;
+	private transient BufferPool.Allocation allocation;
+	
+	private static MatrixBackend createBackend(String name) {
 		
-		// Create a command-queue for the selected device
-		commandQueue = clCreateCommandQueue(context, device, 0, null);
+		if ("java".equals(name)) {
+			return new JavaBackend();
+		} else if (name != null && !"opencl".equals(name)) {
+			throw new IllegalArgumentException("Unknown backend " + name);
+		}
 		
 		try {
 			
-			mulKernel = loadKernel("matmul");
-			dotKernel = loadKernel("matdot");
-			sigKernel = loadKernel("matsig");
-			sigPrimeKernel = loadKernel("matsigprime");
-			addKernel = loadKernel("matadd");
-			fltMulKernel = loadKernel("fltmul");
-			matPowKernel = loadKernel("matpow");
-			matFltDivKernel = loadKernel("matfltdiv");
-			fltMatDivKernel = loadKernel("fltmatdiv");
-			matMatDivKernel = loadKernel("matmatdiv");
-			subKernel = loadKernel("matsub");
-			dotATKernel = loadKernel("matdotat");
-			dotBTKernel = loadKernel("matdotbt");
+			return new OpenCLBackend();
 			
-		} catch (IOException e) {
+		} catch (IOException | RuntimeException | LinkageError e) {
 			
-			e.printStackTrace();
-			System.exit(1);
+			if (name != null) {
+				throw new IllegalStateException("Unable to create the " + name + " backend", e);
+			}
+			
+			System.err.println("OpenCL is not available (" + e + "), falling back to the java backend");
+			return new JavaBackend();
 			
 		}
 		
 	}
 	
-	private static cl_kernel loadKernel(String kernelName) throws IOException {
+	/**
+	 * 
+	 * @return the backend which all matrices are stored and computed with
+	 */
+	public static MatrixBackend getBackend() {
 		
-		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File("kernel/" + kernelName + ".cl"))));
-		StringBuilder sb = new StringBuilder();
-		String line = null;
-		while ((line = br.readLine()) != null) {
-			sb.append(line).append("\n");
-		}
-		br.close();
-		String code = sb.toString();
+		return backend;
 		
-		cl_program program = clCreateProgramWithSource(context, 1, new String[] { code }, null, null);
-		clBuildProgram(program, 0, null, null, null, null);
+	}
+	
+	/**
+	 * 
+	 * @return the pool which the storage of every matrix comes from
+	 */
+	public static BufferPool getPool() {
+		
+		return pool;
 		
-		cl_kernel kernel = clCreateKernel(program, kernelName, null);
+	}
+	
+	/**
+	 * 
+	 * @return the precision matrices are stored in unless another is given
+	 */
+	public static Precision getDefaultPrecision() {
 		
-		return kernel;
+		return defaultPrecision;
 		
 	}
 	
 	public Matrix(int rows, int columns, float[] data) {
 		
-		this(rows, columns);
+		this(rows, columns, data, defaultPrecision);
+		
+	}
+	
+	public Matrix(int rows, int columns, float[] data, Precision precision) {
+		
+		this(rows, columns, precision);
 		
 		assert data.length == rows * columns;
 		
-		Pointer pointer = Pointer.to(data);
-		clEnqueueWriteBuffer(commandQueue, mData, CL_TRUE, 0, Sizeof.cl_float * size, pointer, 0, null, null);
+		backend.write(this, data);
 		
 	}
 	
 	public Matrix(int rows, int columns) {
 		
+		this(rows, columns, defaultPrecision);
+		
+	}
+	
+	public Matrix(int rows, int columns, Precision precision) {
+		
 		this.rows = rows;
 		this.columns = columns;
 		this.size = rows * columns;
+		this.precision = precision;
 		
-		mData = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, Sizeof.cl_float * size, null, null);
+		allocate();
 		
 	}
 	
@@ -189,31 +152,41 @@ public class Matrix implements Serializable {
 	
 	public Matrix(Matrix a) {
 		
-		this.rows = a.rows;
-		this.columns = a.columns;
-		this.size = rows * columns;
+		this(a.rows, a.columns, a.precision);
+		
+		backend.copy(a, this);
+		
+	}
+	
+	private void allocate() {
 		
-		Pointer pointer = Pointer.to(a.mData);
-		mData = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, Sizeof.cl_float * size, pointer, null);
-		clEnqueueWriteBuffer(commandQueue, mData, CL_TRUE, 0, Sizeof.cl_float * size, pointer, 0, null, null);
+		allocation = pool.acquire(this, size, precision);
+		buffer = allocation.buffer;
 		
 	}
 	
+	/**
+	 * 
+	 * Returns the storage of this matrix to the pool, after which it must not be used. The pool
+	 * only hands it out again once every operation queued so far, by any thread, has finished.
+	 * Matrices which are not released have their storage returned once they are garbage collected
+	 * 
+	 */
 	public void release() {
 		
-		if (mData != null) {
+		if (allocation != null) {
 			
-			clReleaseMemObject(mData);
-			mData = null;
+			pool.release(allocation);
+			allocation = null;
+			buffer = null;
 			
 		}
 		
 	}
 	
 	@Override
-	protected void finalize() throws Throwable { // called by the garbage collector
+	public void close() {
 		
-		super.finalize();
 		release();
 		
 	}
@@ -236,19 +209,119 @@ public class Matrix implements Serializable {
 		
 	}
 	
+	public Precision getPrecision() {
+		
+		return precision;
+		
+	}
+	
 	public float[] getData() {
 		
 		float[] data = new float[size];
 		
-		clEnqueueReadBuffer(commandQueue, mData, CL_TRUE, 0, Sizeof.cl_float * size, Pointer.to(data), 0, null, null);
+		backend.read(this, data);
 		
 		return data;
 		
 	}
 	
+	/**
+	 * 
+	 * Reads the matrix without blocking, the data will include every operation queued before this
+	 * call
+	 * 
+	 * @return a future completed with the data once it has been read
+	 */
+	public CompletableFuture<float[]> getDataAsync() {
+		
+		return backend.readAsync(this);
+		
+	}
+	
+	/**
+	 * 
+	 * Replaces the contents of the matrix. This does not wait for the transfer to finish, but data
+	 * may be reused as soon as it returns
+	 * 
+	 * @param data
+	 *            - the new contents
+	 */
 	public void setData(float[] data) {
 		
-		clEnqueueWriteBuffer(commandQueue, mData, CL_TRUE, 0, Sizeof.cl_float * size, Pointer.to(data), 0, null, null);
+		backend.write(this, data);
+		
+	}
+	
+	/**
+	 * 
+	 * Replaces the contents of the matrix in place, without copying them through an array. See
+	 * MatrixBackend.write(Matrix, Consumer)
+	 * 
+	 * @param writer
+	 *            - puts every value of the matrix, in row major order, into the buffer it is given
+	 */
+	public void setData(Consumer<FloatBuffer> writer) {
+		
+		backend.write(this, writer);
+		
+	}
+	
+	/**
+	 * 
+	 * @return a future completed once every operation the calling thread has queued on its device
+	 *         has finished
+	 */
+	public static CompletableFuture<Void> marker() {
+		
+		return backend.marker();
+		
+	}
+	
+	/**
+	 * 
+	 * Blocks until every operation queued so far, on every device, has finished
+	 * 
+	 */
+	public static void finish() {
+		
+		backend.finish();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the amount of devices that operations can be queued on
+	 */
+	public static int getDeviceCount() {
+		
+		return backend.getDeviceCount();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the device that operations of the calling thread are queued on
+	 */
+	public static int getDevice() {
+		
+		return backend.getDevice();
+		
+	}
+	
+	/**
+	 * 
+	 * Queues the operations the calling thread makes after this on another device. Every matrix can
+	 * be used on any device, but call finish before using a matrix on a different device than the
+	 * one that last wrote it
+	 * 
+	 * @param device
+	 *            - the index of the device, less than getDeviceCount
+	 */
+	public static void setDevice(int device) {
+		
+		assert device >= 0 && device < backend.getDeviceCount();
+		
+		backend.setDevice(device);
 		
 	}
 	
@@ -282,114 +355,180 @@ public class Matrix implements Serializable {
 		rows = in.readInt();
 		columns = in.readInt();
 		size = rows * columns;
+		precision = defaultPrecision;
 		float[] data = (float[]) in.readObject();
-		mData = clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR, Sizeof.cl_float * size, Pointer.to(data), null);
+		allocate();
 		setData(data);
 		
 	}
 	
-	public static Matrix dot(Matrix a, Matrix b, Matrix out, boolean aT, boolean bT) {
+	/**
+	 * 
+	 * Copies a into out, which must be the same size. If they have different precisions the copy
+	 * goes through the host, so it should only be done occasionally
+	 * 
+	 * @return out
+	 */
+	public static Matrix copy(Matrix a, Matrix out) {
+		
+		assert a.size == out.size;
+		
+		if (a.precision != out.precision) {
+			out.setData(a.getData());
+			return out;
+		}
+		
+		backend.copy(a, out);
+		
+		return out;
+		
+	}
+	
+	/**
+	 * 
+	 * Copies out.getColumns() columns of a, starting from column, into out
+	 * 
+	 * @return out
+	 */
+	public static Matrix copyColumns(Matrix a, int column, Matrix out) {
+		
+		assert a.rows == out.rows && column >= 0 && column + out.columns <= a.columns;
+		assert samePrecision(a, out);
+		
+		backend.copyColumns(a, column, out);
+		
+		return out;
+		
+	}
+	
+	/**
+	 * 
+	 * Copies the columns of a whose indices are held in indices, from offset onwards, into out. The
+	 * indices are stored as floats, so a may have at most 2^24 columns
+	 * 
+	 * @return out
+	 */
+	public static Matrix gatherColumns(Matrix a, Matrix indices, int offset, Matrix out) {
+		
+		assert a.rows == out.rows && a.columns <= 1 << 24 && offset >= 0 && offset + out.columns <= indices.size;
+		assert samePrecision(a, out) && indices.precision == Precision.SINGLE;
 		
-		assert !(aT && bT);
+		backend.gatherColumns(a, indices, offset, out);
+		
+		return out;
+		
+	}
+	
+	public static Matrix dot(Matrix a, Matrix b, Matrix out, boolean aT, boolean bT) {
 		
-		int mdim, ndim, pdim;
+		assert !(aT && bT) && samePrecision(a, b, out);
 		
 		if (!aT && !bT) {
-			
 			assert a.columns == b.rows && out.rows == a.rows && out.columns == b.columns;
-			
-			mdim = a.getRows();
-			ndim = b.getColumns();
-			pdim = a.getColumns();
-			
-			clSetKernelArg(dotKernel, 0, Sizeof.cl_int, Pointer.to(new int[] { mdim }));
-			clSetKernelArg(dotKernel, 1, Sizeof.cl_int, Pointer.to(new int[] { ndim }));
-			clSetKernelArg(dotKernel, 2, Sizeof.cl_int, Pointer.to(new int[] { pdim }));
-			clSetKernelArg(dotKernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-			clSetKernelArg(dotKernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-			clSetKernelArg(dotKernel, 5, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-			
-			global[0] = ndim;
-			global[1] = mdim;
-			local[0] = 1;
-			
-			clEnqueueNDRangeKernel(commandQueue, dotKernel, 2, null, global, null, 0, null, null);
-			
 		} else if (aT) {
-			
-//			assert a.rows == b.rows && out.rows == a.columns && out.columns == b.columns;
-			
-			mdim = a.getColumns();
-			ndim = b.getColumns();
-			pdim = a.getRows();
-			
-			clSetKernelArg(dotATKernel, 0, Sizeof.cl_int, Pointer.to(new int[] { mdim }));
-			clSetKernelArg(dotATKernel, 1, Sizeof.cl_int, Pointer.to(new int[] { ndim }));
-			clSetKernelArg(dotATKernel, 2, Sizeof.cl_int, Pointer.to(new int[] { pdim }));
-			clSetKernelArg(dotATKernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-			clSetKernelArg(dotATKernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-			clSetKernelArg(dotATKernel, 5, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-			
-			global[0] = mdim;
-			global[1] = ndim;
-			local[0] = 1;
-			
-			clEnqueueNDRangeKernel(commandQueue, dotATKernel, 2, null, global, null, 0, null, null);
-			
-		} else if (bT) {
-			
+			assert a.rows == b.rows && out.rows == a.columns && out.columns == b.columns;
+		} else {
 			assert a.columns == b.columns && out.rows == a.rows && out.columns == b.rows;
-			
-			mdim = a.getRows();
-			ndim = b.getRows();
-			pdim = a.getColumns();
-			
-			clSetKernelArg(dotBTKernel, 0, Sizeof.cl_int, Pointer.to(new int[] { mdim }));
-			clSetKernelArg(dotBTKernel, 1, Sizeof.cl_int, Pointer.to(new int[] { ndim }));
-			clSetKernelArg(dotBTKernel, 2, Sizeof.cl_int, Pointer.to(new int[] { pdim }));
-			clSetKernelArg(dotBTKernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-			clSetKernelArg(dotBTKernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-			clSetKernelArg(dotBTKernel, 5, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-			
-			global[0] = mdim;
-			global[1] = ndim;
-			local[0] = 1;
-			
-			clEnqueueNDRangeKernel(commandQueue, dotBTKernel, 2, null, global, null, 0, null, null);
 		}
+		
+		backend.dot(a, b, out, aT, bT);
+		
 		return out;
 		
 	}
 	
-	public static Matrix multiply(float a, Matrix b, Matrix out) {
+	/**
+	 * 
+	 * Computes out = sigmoid(a.b) in one pass, which is how every layer of the network is
+	 * activated
+	 * 
+	 * @param a
+	 *            - the left matrix
+	 * @param b
+	 *            - the right matrix
+	 * @param out
+	 *            - where the result is written, which must not be a or b
+	 * @return out
+	 */
+	public static Matrix dotSigmoid(Matrix a, Matrix b, Matrix out) {
+		
+		assert a.columns == b.rows && out.rows == a.rows && out.columns == b.columns;
+		assert samePrecision(a, b, out);
+		
+		backend.dotSigmoid(a, b, out);
 		
-		assert b.size == out.size;
+		return out;
 		
-		clSetKernelArg(fltMulKernel, 0, Sizeof.cl_float, Pointer.to(new float[] { a }));
-		clSetKernelArg(fltMulKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-		clSetKernelArg(fltMulKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
+	}
+	
+	/**
+	 * 
+	 * Computes out = sigmoid(a.b) with quantized weights, see MatrixBackend.dotSigmoid. Every value
+	 * of b should be within QuantizedMatrix.MAX_VALUE steps of zero, as larger ones are clamped
+	 * 
+	 * @param a
+	 *            - the quantized weights
+	 * @param b
+	 *            - the right matrix
+	 * @param bScale
+	 *            - the step b is quantized to
+	 * @param out
+	 *            - where the result is written, which must not be b
+	 * @return out
+	 */
+	public static Matrix dotSigmoid(QuantizedMatrix a, Matrix b, float bScale, Matrix out) {
+		
+		assert a.getColumns() == b.rows && out.rows == a.getRows() && out.columns == b.columns;
+		assert samePrecision(b, out) && a.buffer != null;
+		
+		backend.dotSigmoid(a, b, bScale, out);
 		
-		global[0] = b.size;
-		local[0] = 1;
+		return out;
 		
-		clEnqueueNDRangeKernel(commandQueue, fltMulKernel, 1, null, global, null, 0, null, null);
+	}
+	
+	/**
+	 * 
+	 * Computes out = transpose(a).b * x * (1 - x) in one pass, which is the delta of a hidden layer
+	 * where x is its activation
+	 * 
+	 * @param a
+	 *            - the left matrix, which is used transposed
+	 * @param b
+	 *            - the right matrix
+	 * @param x
+	 *            - the output of the sigmoid that the derivative is taken at
+	 * @param out
+	 *            - where the result is written, which must not be a or b
+	 * @return out
+	 */
+	public static Matrix dotATSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out) {
+		
+		assert a.rows == b.rows && out.rows == a.columns && out.columns == b.columns;
+		assert x.rows == out.rows && x.columns == out.columns && samePrecision(a, b, x, out);
+		
+		backend.dotATSigmoidPrime(a, b, x, out);
 		
 		return out;
 		
 	}
 	
-	public static Matrix multiply(Matrix a, Matrix b, Matrix out) {
+	public static Matrix multiply(float a, Matrix b, Matrix out) {
 		
-		assert a.columns == b.columns && a.rows == b.rows && out.columns == a.columns && out.rows == a.rows;
+		assert b.size == out.size && samePrecision(b, out);
 		
-		clSetKernelArg(mulKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(mulKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-		clSetKernelArg(mulKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
+		backend.multiply(a, b, out);
 		
-		global[0] = a.size;
-		local[0] = 1;
+		return out;
 		
-		clEnqueueNDRangeKernel(commandQueue, mulKernel, 1, null, global, null, 0, null, null);
+	}
+	
+	public static Matrix multiply(Matrix a, Matrix b, Matrix out) {
+		
+		assert a.columns == b.columns && a.rows == b.rows && out.columns == a.columns && out.rows == a.rows;
+		assert samePrecision(a, b, out);
+		
+		backend.multiply(a, b, out);
 		
 		return out;
 		
@@ -397,31 +536,18 @@ public class Matrix implements Serializable {
 	
 	public static void pow(Matrix a, float b, Matrix out) {
 		
-		assert out.columns == a.columns && out.rows == a.rows;
-		
-		clSetKernelArg(matPowKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(matPowKernel, 1, Sizeof.cl_float, Pointer.to(new float[] { b }));
-		clSetKernelArg(matPowKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
+		assert out.columns == a.columns && out.rows == a.rows && samePrecision(a, out);
 		
-		global[0] = a.size;
-		local[0] = 1;
-		
-		clEnqueueNDRangeKernel(commandQueue, matPowKernel, 1, null, global, null, 0, null, null);
+		backend.pow(a, b, out);
 		
 	}
 	
 	public static Matrix divide(Matrix a, Matrix b, Matrix out) {
 		
 		assert a.columns == b.columns && a.rows == b.rows && out.columns == a.columns && out.rows == a.rows;
+		assert samePrecision(a, b, out);
 		
-		clSetKernelArg(matMatDivKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(matMatDivKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-		clSetKernelArg(matMatDivKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-		
-		global[0] = b.size;
-		local[0] = 1;
-		
-		clEnqueueNDRangeKernel(commandQueue, matMatDivKernel, 1, null, global, null, 0, null, null);
+		backend.divide(a, b, out);
 		
 		return out;
 		
@@ -429,16 +555,9 @@ public class Matrix implements Serializable {
 	
 	public static Matrix divide(float a, Matrix b, Matrix out) {
 		
-		assert out.columns == b.columns && out.rows == b.rows;
-		
-		clSetKernelArg(fltMatDivKernel, 0, Sizeof.cl_float, Pointer.to(new float[] { a }));
-		clSetKernelArg(fltMatDivKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-		clSetKernelArg(fltMatDivKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-		
-		global[0] = b.size;
-		local[0] = 1;
+		assert out.columns == b.columns && out.rows == b.rows && samePrecision(b, out);
 		
-		clEnqueueNDRangeKernel(commandQueue, fltMatDivKernel, 1, null, global, null, 0, null, null);
+		backend.divide(a, b, out);
 		
 		return out;
 		
@@ -446,16 +565,9 @@ public class Matrix implements Serializable {
 	
 	public static Matrix divide(Matrix a, float b, Matrix out) {
 		
-		assert out.columns == a.columns && out.rows == a.rows;
+		assert out.columns == a.columns && out.rows == a.rows && samePrecision(a, out);
 		
-		clSetKernelArg(matFltDivKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(matFltDivKernel, 1, Sizeof.cl_float, Pointer.to(new float[] { b }));
-		clSetKernelArg(matFltDivKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-		
-		global[0] = a.size;
-		local[0] = 1;
-		
-		clEnqueueNDRangeKernel(commandQueue, matFltDivKernel, 1, null, global, null, 0, null, null);
+		backend.divide(a, b, out);
 		
 		return out;
 		
@@ -464,15 +576,9 @@ public class Matrix implements Serializable {
 	public static Matrix add(Matrix a, Matrix b, Matrix out) {
 		
 		assert a.columns == b.columns && a.rows == b.rows && out.columns == a.columns && out.rows == a.rows;
+		assert samePrecision(a, b, out);
 		
-		clSetKernelArg(addKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(addKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-		clSetKernelArg(addKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-		
-		global[0] = a.size;
-		local[0] = 1;
-		
-		clEnqueueNDRangeKernel(commandQueue, addKernel, 1, null, global, null, 0, null, null);
+		backend.add(a, b, out);
 		
 		return out;
 		
@@ -481,15 +587,9 @@ public class Matrix implements Serializable {
 	public static Matrix sub(Matrix a, Matrix b, Matrix out) {
 		
 		assert a.columns == b.columns && a.rows == b.rows && out.columns == a.columns && out.rows == a.rows;
+		assert samePrecision(a, b, out);
 		
-		clSetKernelArg(subKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(subKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { b.mData }));
-		clSetKernelArg(subKernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
-		
-		global[0] = a.size;
-		local[0] = 1;
-		
-		clEnqueueNDRangeKernel(commandQueue, subKernel, 1, null, global, null, 0, null, null);
+		backend.sub(a, b, out);
 		
 		return out;
 		
@@ -497,25 +597,102 @@ public class Matrix implements Serializable {
 	
 	public static float sum(Matrix a) {
 		
-		float[] data = a.getData();
+		return backend.sum(a);
 		
-		return (float) IntStream.range(0, a.rows * a.columns).parallel().mapToDouble(i -> {
-			return data[i];
-		}).sum();
+	}
+	
+	/**
+	 * 
+	 * @return a future completed with the sum of all the elements of a, once they have been added
+	 *         up without blocking
+	 */
+	public static CompletableFuture<Float> sumAsync(Matrix a) {
+		
+		return backend.sumAsync(a);
 		
 	}
 	
-	public static Matrix sigmoid(Matrix a, Matrix out) {
+	public static float sumOfSquares(Matrix a) {
+		
+		return backend.sumOfSquares(a);
+		
+	}
+	
+	/**
+	 * 
+	 * @return a future completed with the sum of the squares of all the elements of a, once they
+	 *         have been added up without blocking
+	 */
+	public static CompletableFuture<Float> sumOfSquaresAsync(Matrix a) {
+		
+		return backend.sumOfSquaresAsync(a);
+		
+	}
+	
+	/**
+	 * 
+	 * @return the L2 norm of all the elements of a
+	 */
+	public static float norm(Matrix a) {
+		
+		return (float) Math.sqrt(backend.sumOfSquares(a));
+		
+	}
+	
+	/**
+	 * 
+	 * @return the sum of (a - b)^2 over every element, without storing a - b
+	 */
+	public static float squaredError(Matrix a, Matrix b) {
+		
+		assert a.columns == b.columns && a.rows == b.rows && samePrecision(a, b);
+		
+		return backend.squaredError(a, b);
+		
+	}
+	
+	/**
+	 * 
+	 * @return a future completed with the sum of (a - b)^2 over every element, once it has been
+	 *         computed without blocking
+	 */
+	public static CompletableFuture<Float> squaredErrorAsync(Matrix a, Matrix b) {
+		
+		assert a.columns == b.columns && a.rows == b.rows && samePrecision(a, b);
 		
-		assert a.rows == a.rows && a.columns == out.columns;
+		return backend.squaredErrorAsync(a, b);
 		
-		clSetKernelArg(sigKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(sigKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
+	}
+	
+	/**
+	 * 
+	 * @return the largest value in each column of a
+	 */
+	public static float[] columnMax(Matrix a) {
 		
-		global[0] = a.size;
-		local[0] = 1;
+		float[] max = new float[a.columns];
+		backend.columnMax(a, max, new int[a.columns]);
+		return max;
 		
-		clEnqueueNDRangeKernel(commandQueue, sigKernel, 1, null, global, null, 0, null, null);
+	}
+	
+	/**
+	 * 
+	 * @return the row of the largest value in each column of a
+	 */
+	public static int[] columnArgmax(Matrix a) {
+		
+		int[] argmax = new int[a.columns];
+		backend.columnMax(a, new float[a.columns], argmax);
+		return argmax;
+		
+	}
+	
+	public static Matrix sigmoid(Matrix a, Matrix out) {
+		
+		assert a.rows == out.rows && a.columns == out.columns && samePrecision(a, out);
+		
+		backend.sigmoid(a, out);
 		
 		return out;
 		
@@ -523,17 +700,123 @@ public class Matrix implements Serializable {
 	
 	public static Matrix sigmoidPrime(Matrix a, Matrix out) {
 		
-		assert a.rows == a.rows && a.columns == out.columns;
+		assert a.rows == out.rows && a.columns == out.columns && samePrecision(a, out);
 		
-		clSetKernelArg(sigPrimeKernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { a.mData }));
-		clSetKernelArg(sigPrimeKernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { out.mData }));
+		backend.sigmoidPrime(a, out);
 		
-		global[0] = a.size;
-		local[0] = 1;
-		
-		clEnqueueNDRangeKernel(commandQueue, sigPrimeKernel, 1, null, global, null, 0, null, null);
+		return out;
+	}
+	
+	/**
+	 * 
+	 * Computes out = (a - b) * x * (1 - x) in one pass, which is the delta of the output layer where
+	 * x is its activation
+	 * 
+	 * @param a
+	 *            - the matrix subtracted from
+	 * @param b
+	 *            - the matrix subtracted
+	 * @param x
+	 *            - the output of the sigmoid that the derivative is taken at
+	 * @param out
+	 *            - where the result is written
+	 * @return out
+	 */
+	public static Matrix subSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out) {
+		
+		assert a.columns == b.columns && a.rows == b.rows && x.columns == a.columns && x.rows == a.rows;
+		assert out.columns == a.columns && out.rows == a.rows && samePrecision(a, b, x, out);
+		
+		backend.subSigmoidPrime(a, b, x, out);
 		
 		return out;
+		
+	}
+	
+	/**
+	 * 
+	 * One step of gradient descent in a single pass, see MatrixBackend.gradientDescent
+	 * 
+	 * @return w
+	 */
+	public static Matrix gradientDescent(Matrix w, Matrix master, Matrix djdw, float gradientScale, float learningRate) {
+		
+		assert w.size == djdw.size && samePrecision(w, djdw) && isMaster(w, master);
+		
+		backend.gradientDescent(w, master, djdw, gradientScale, learningRate);
+		
+		return w;
+		
+	}
+	
+	/**
+	 * 
+	 * One step of gradient descent with momentum in a single pass, see MatrixBackend.momentum
+	 * 
+	 * @return w
+	 */
+	public static Matrix momentum(Matrix w, Matrix master, Matrix djdw, Matrix velocity, float gradientScale, float learningRate, float momentum, boolean nesterov) {
+		
+		assert w.size == djdw.size && w.size == velocity.size && samePrecision(w, djdw) && isMaster(w, master) && velocity.precision == Precision.SINGLE;
+		
+		backend.momentum(w, master, djdw, velocity, gradientScale, learningRate, momentum, nesterov);
+		
+		return w;
+		
+	}
+	
+	/**
+	 * 
+	 * One step of RMSProp in a single pass, see MatrixBackend.rmsProp
+	 * 
+	 * @return w
+	 */
+	public static Matrix rmsProp(Matrix w, Matrix master, Matrix djdw, Matrix meanSquare, float gradientScale, float learningRate, float decay, float epsilon) {
+		
+		assert w.size == djdw.size && w.size == meanSquare.size && samePrecision(w, djdw) && isMaster(w, master) && meanSquare.precision == Precision.SINGLE;
+		
+		backend.rmsProp(w, master, djdw, meanSquare, gradientScale, learningRate, decay, epsilon);
+		
+		return w;
+		
+	}
+	
+	/**
+	 * 
+	 * One step of Adam in a single pass, see MatrixBackend.adam
+	 * 
+	 * @return w
+	 */
+	public static Matrix adam(Matrix w, Matrix master, Matrix djdw, Matrix m, Matrix v, float gradientScale, float learningRate, float beta1, float beta2, float epsilon, int step) {
+		
+		assert w.size == djdw.size && w.size == m.size && w.size == v.size && step >= 1;
+		assert samePrecision(w, djdw) && isMaster(w, master) && m.precision == Precision.SINGLE && v.precision == Precision.SINGLE;
+		
+		backend.adam(w, master, djdw, m, v, gradientScale, learningRate, beta1, beta2, epsilon, step);
+		
+		return w;
+		
+	}
+	
+	private static boolean samePrecision(Matrix... matrices) {
+		
+		for (Matrix matrix : matrices) {
+			if (matrix.precision != matrices[0].precision) {
+				return false;
+			}
+		}
+		return true;
+		
+	}
+	
+	/**
+	 * Weights in single precision are their own master copy, those in half precision need one in
+	 * single precision
+	 */
+	private static boolean isMaster(Matrix w, Matrix master) {
+		
+		return w.precision == Precision.SINGLE ? master == w : master.size == w.size && master.precision == Precision.SINGLE;
+		
 	}
 	
 	private static float[] arrayFromSupplier(int size, Supplier<Double> supplier) {
@@ -546,4 +829,33 @@ public class Matrix implements Serializable {
 		
 	}
 	
+	/**
+	 * 
+	 * How the values of a matrix are stored
+	 *
+	 */
+	public enum Precision {
+		
+		SINGLE(4), HALF(2);
+		
+		private final int bytes;
+		
+		private Precision(int bytes) {
+			
+			this.bytes = bytes;
+			
+		}
+		
+		/**
+		 * 
+		 * @return the size of one value
+		 */
+		public int getBytes() {
+			
+			return bytes;
+			
+		}
+		
+	}
+	
 }
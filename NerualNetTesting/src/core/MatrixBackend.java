@@ -0,0 +1,298 @@
+package core;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 
+ * The operations which Matrix delegates to. Each implementation owns the storage held in
+ * Matrix.buffer, which is only ever created and used by the backend that made it. Every operation
+ * may be called from several threads at once
+ * 
+ * @see Matrix
+ * @see OpenCLBackend
+ * @see JavaBackend
+ * 
+ * @author Kacper
+ *
+ */
+public interface MatrixBackend {
+	
+	/**
+	 * 
+	 * @return the name that the backend is selected by
+	 */
+	public String getName();
+	
+	/**
+	 * 
+	 * Creates the storage for a matrix
+	 * 
+	 * @param size
+	 *            - the amount of values the storage should hold
+	 * @param precision
+	 *            - how each value is stored
+	 * @return the storage
+	 */
+	public Object allocate(int size, Matrix.Precision precision);
+	
+	/**
+	 * 
+	 * Frees the storage of a matrix, it must not be used afterwards
+	 * 
+	 * @param buffer
+	 *            - the storage created by allocate
+	 */
+	public void release(Object buffer);
+	
+	/**
+	 * 
+	 * Creates the storage for the bytes of a QuantizedMatrix, which is freed by release
+	 * 
+	 * @param values
+	 *            - the bytes in row major order, which must not be changed afterwards
+	 * @return the storage
+	 */
+	public Object allocateQuantized(byte[] values);
+	
+	public void read(Matrix a, float[] data);
+	
+	/**
+	 * 
+	 * Reads a matrix without waiting for the operations queued before it to finish
+	 * 
+	 * @param a
+	 *            - the matrix to read
+	 * @return a future completed with the data once it has been read
+	 */
+	public CompletableFuture<float[]> readAsync(Matrix a);
+	
+	/**
+	 * 
+	 * Writes to a matrix. The transfer may still be running when this returns, but data may be
+	 * changed straight away
+	 * 
+	 * @param a
+	 *            - the matrix written to
+	 * @param data
+	 *            - the new contents of a
+	 */
+	public void write(Matrix a, float[] data);
+	
+	/**
+	 * 
+	 * Writes to a matrix in place, through a host buffer that holds its contents in row major order
+	 * and is uploaded once writer returns. The buffer's contents are undefined beforehand, so writer
+	 * must put every value, and it may do so from several threads as long as only absolute puts are
+	 * used
+	 * 
+	 * @param a
+	 *            - the matrix written to
+	 * @param writer
+	 *            - fills the buffer, which must not be kept after it returns
+	 */
+	public void write(Matrix a, Consumer<FloatBuffer> writer);
+	
+	/**
+	 * 
+	 * @return a future completed once every operation the calling thread has queued on its device
+	 *         has finished
+	 */
+	public CompletableFuture<Void> marker();
+	
+	/**
+	 * 
+	 * @return a future completed once every operation queued so far, by any thread on any device,
+	 *         has finished, without blocking
+	 */
+	public CompletableFuture<Void> barrier();
+	
+	/**
+	 * 
+	 * Waits for every operation queued so far on every device to finish
+	 * 
+	 */
+	public void finish();
+	
+	/**
+	 * 
+	 * @return the amount of devices that operations can be queued on
+	 */
+	public int getDeviceCount();
+	
+	/**
+	 * 
+	 * @return the device that operations of the calling thread are queued on
+	 */
+	public int getDevice();
+	
+	/**
+	 * 
+	 * Queues the operations the calling thread makes after this on another device. Every matrix can
+	 * be used on any device, but operations on different devices run in no particular order, so the
+	 * devices have to be finished before one reads what another has written
+	 * 
+	 * @param device
+	 *            - the index of the device, less than getDeviceCount
+	 */
+	public void setDevice(int device);
+	
+	public void copy(Matrix a, Matrix out);
+	
+	/**
+	 * 
+	 * Copies the columns of a starting from column into out, which has as many rows as a
+	 * 
+	 * @param a
+	 *            - the matrix copied from
+	 * @param column
+	 *            - the first column of a that is copied
+	 * @param out
+	 *            - the matrix copied to, which is filled
+	 */
+	public void copyColumns(Matrix a, int column, Matrix out);
+	
+	/**
+	 * 
+	 * Copies the columns of a whose indices are listed in indices, starting from offset, into out
+	 * 
+	 * @param a
+	 *            - the matrix copied from
+	 * @param indices
+	 *            - a matrix holding column indices of a, as whole numbers
+	 * @param offset
+	 *            - the position in indices of the index of the first column of out
+	 * @param out
+	 *            - the matrix copied to, which is filled
+	 */
+	public void gatherColumns(Matrix a, Matrix indices, int offset, Matrix out);
+	
+	public void dot(Matrix a, Matrix b, Matrix out, boolean aT, boolean bT);
+	
+	public void dotSigmoid(Matrix a, Matrix b, Matrix out);
+	
+	/**
+	 * 
+	 * Computes sigmoid(a.b) with integer arithmetic. Each value of b is quantized to the nearest
+	 * multiple of bScale as it is read, the bytes of each row of a are multiplied with them and added
+	 * up as ints, and the sum is multiplied by the scale of the row and bScale
+	 * 
+	 * @param bScale
+	 *            - the value a quantized step of b stands for
+	 */
+	public void dotSigmoid(QuantizedMatrix a, Matrix b, float bScale, Matrix out);
+	
+	public void dotATSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out);
+	
+	public void multiply(float a, Matrix b, Matrix out);
+	
+	public void multiply(Matrix a, Matrix b, Matrix out);
+	
+	public void pow(Matrix a, float b, Matrix out);
+	
+	public void divide(Matrix a, Matrix b, Matrix out);
+	
+	public void divide(float a, Matrix b, Matrix out);
+	
+	public void divide(Matrix a, float b, Matrix out);
+	
+	public void add(Matrix a, Matrix b, Matrix out);
+	
+	public void sub(Matrix a, Matrix b, Matrix out);
+	
+	public float sum(Matrix a);
+	
+	public CompletableFuture<Float> sumAsync(Matrix a);
+	
+	public float sumOfSquares(Matrix a);
+	
+	public CompletableFuture<Float> sumOfSquaresAsync(Matrix a);
+	
+	/**
+	 * 
+	 * @return the sum of (a - b)^2 over every element
+	 */
+	public float squaredError(Matrix a, Matrix b);
+	
+	public CompletableFuture<Float> squaredErrorAsync(Matrix a, Matrix b);
+	
+	/**
+	 * 
+	 * Finds the largest value in each column of a, and the row that it is in
+	 * 
+	 * @param a
+	 *            - the matrix to search
+	 * @param max
+	 *            - filled with the largest value of each column
+	 * @param argmax
+	 *            - filled with the row of the largest value of each column
+	 */
+	public void columnMax(Matrix a, float[] max, int[] argmax);
+	
+	public void sigmoid(Matrix a, Matrix out);
+	
+	public void sigmoidPrime(Matrix a, Matrix out);
+	
+	public void subSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out);
+	
+	/**
+	 * 
+	 * Takes one step of gradient descent, updating w in place. Each optimisation step reads the
+	 * weights from master, a copy of them in single precision, and writes the new weights to both.
+	 * Weights that are in single precision are passed as their own master
+	 * 
+	 * @param w
+	 *            - the weights
+	 * @param master
+	 *            - the weights in single precision, or w itself
+	 * @param djdw
+	 *            - the gradient of the weights, which is left as it is
+	 * @param gradientScale
+	 *            - what djdw is multiplied by before it is used, which undoes loss scaling
+	 * @param learningRate
+	 *            - the size of the step
+	 */
+	public void gradientDescent(Matrix w, Matrix master, Matrix djdw, float gradientScale, float learningRate);
+	
+	/**
+	 * 
+	 * Takes one step of gradient descent with momentum, updating w and velocity in place
+	 * 
+	 * @param velocity
+	 *            - the decaying sum of the past gradients
+	 * @param momentum
+	 *            - how much of the velocity is kept each step
+	 * @param nesterov
+	 *            - whether the step is taken from where the velocity leads, rather than from w
+	 */
+	public void momentum(Matrix w, Matrix master, Matrix djdw, Matrix velocity, float gradientScale, float learningRate, float momentum, boolean nesterov);
+	
+	/**
+	 * 
+	 * Takes one step of RMSProp, updating w and meanSquare in place
+	 * 
+	 * @param meanSquare
+	 *            - the decaying average of the squares of the past gradients
+	 * @param decay
+	 *            - how much of meanSquare is kept each step
+	 * @param epsilon
+	 *            - added to the root mean square so that it is never divided by zero
+	 */
+	public void rmsProp(Matrix w, Matrix master, Matrix djdw, Matrix meanSquare, float gradientScale, float learningRate, float decay, float epsilon);
+	
+	/**
+	 * 
+	 * Takes one step of Adam, updating w, m and v in place
+	 * 
+	 * @param m
+	 *            - the decaying average of the past gradients
+	 * @param v
+	 *            - the decaying average of the squares of the past gradients
+	 * @param step
+	 *            - how many steps have been taken including this one, which the bias of m and v is
+	 *            corrected with
+	 */
+	public void adam(Matrix w, Matrix master, Matrix djdw, Matrix m, Matrix v, float gradientScale, float learningRate, float beta1, float beta2, float epsilon, int step);
+	
+}
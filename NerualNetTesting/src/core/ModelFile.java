@@ -0,0 +1,322 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * 
+ * Reads and writes networks in a binary format that is memory mapped when it is read, so that the
+ * weights go straight from the file into the storage of each matrix without passing through
+ * serialization or any array on the heap.
+ * 
+ * Everything is little endian. The header is the magic bytes "NNWB", the version, the type of the
+ * values, the CRC32 of everything after the first 16 bytes, the input layer size, the output layer
+ * size, the hidden layer size, the amount of hidden layers and the amount of weight matrices, all
+ * as ints, and then four bytes of padding. A table follows with the rows and columns of each weight
+ * matrix as ints and the offset of its values as a long. The values of each matrix are stored in
+ * row major order, starting at a multiple of ALIGNMENT bytes, with zeros in between
+ * 
+ * @author Kacper
+ *
+ */
+final class ModelFile {
+	
+	private static final int MAGIC = 'N' | 'N' << 8 | 'W' << 16 | 'B' << 24;
+	private static final int VERSION = 1;
+	
+	private static final int SINGLE = 1;
+	private static final int HALF = 2;
+	
+	private static final int CHECKSUM = 12;
+	private static final int HEADER = 40;
+	private static final int TABLE_ENTRY = 16;
+	
+	/**
+	 * What the offset of the values of each matrix is a multiple of, which is at least a cache line
+	 * so that each matrix starts on its own
+	 */
+	static final int ALIGNMENT = 64;
+	
+	private ModelFile() {}
+	
+	/**
+	 * 
+	 * @return whether the file starts with the magic bytes of this format
+	 * @throws IOException
+	 */
+	static boolean isModelFile(File file) throws IOException {
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {}
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Writes the weights of a network. They are stored in half precision if the weights are, and in
+	 * single precision otherwise
+	 * 
+	 * @param network
+	 *            - the network to write
+	 * @param file
+	 *            - where the network should be written
+	 * @throws IOException
+	 */
+	static void write(NeuralNetwork network, File file) throws IOException {
+		
+		Matrix[] w = network.getW();
+		float[][] data = new float[w.length][];
+		for (int i = 0; i < w.length; i++) {
+			data[i] = w[i].getData();
+		}
+		write(network, data, file);
+		
+	}
+	
+	/**
+	 * 
+	 * Writes weights that have already been read from a network, which only has its shape read so
+	 * this can be called from any thread
+	 * 
+	 * @param network
+	 *            - the network the weights were read from
+	 * @param data
+	 *            - the values of each weight matrix in row major order
+	 * @param file
+	 *            - where the network should be written
+	 * @throws IOException
+	 */
+	static void write(NeuralNetwork network, float[][] data, File file) throws IOException {
+		
+		Matrix[] w = network.getW();
+		assert data.length == w.length;
+		int type = w[0].getPrecision() == Matrix.Precision.HALF ? HALF : SINGLE;
+		int bytes = type == HALF ? 2 : 4;
+		
+		ByteBuffer header = ByteBuffer.allocate(align(HEADER + TABLE_ENTRY * w.length)).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(type);
+		header.putInt(0);
+		header.putInt(network.getInputLayerSize());
+		header.putInt(network.getOutputLayerSize());
+		header.putInt(network.getHiddenLayerSize());
+		header.putInt(network.getNumberOfHiddenLayers());
+		header.putInt(w.length);
+		header.putInt(0);
+		
+		long offset = header.capacity();
+		for (Matrix weights : w) {
+			
+			header.putInt(weights.getRows());
+			header.putInt(weights.getColumns());
+			header.putLong(offset);
+			offset += align((long) bytes * weights.getSize());
+			
+		}
+		header.clear();
+		
+		CRC32 checksum = new CRC32();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			
+			header.position(CHECKSUM + 4);
+			checksum.update(header);
+			header.clear();
+			writeFully(channel, header);
+			
+			for (float[] values : data) {
+				
+				ByteBuffer block = ByteBuffer.allocate((int) align((long) bytes * values.length)).order(ByteOrder.LITTLE_ENDIAN);
+				if (type == HALF) {
+					
+					ShortBuffer halves = block.asShortBuffer();
+					for (int i = 0; i < values.length; i++) {
+						halves.put(i, Half.fromFloat(values[i]));
+					}
+					
+				} else {
+					block.asFloatBuffer().put(values);
+				}
+				
+				checksum.update(block);
+				block.clear();
+				writeFully(channel, block);
+				
+			}
+			
+			header.clear();
+			header.putInt(CHECKSUM, (int) checksum.getValue());
+			header.position(CHECKSUM).limit(CHECKSUM + 4);
+			channel.position(CHECKSUM);
+			writeFully(channel, header);
+			
+			// the file must be on disk before it is renamed into place, or a crash could leave the
+			// new name pointing at a file whose contents never made it
+			channel.force(true);
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Renames a file that has just been written into place, replacing whatever was there, and then
+	 * syncs the directory so that the rename itself is on disk
+	 * 
+	 * @param source
+	 *            - the file that was written
+	 * @param target
+	 *            - where it belongs
+	 * @throws IOException
+	 */
+	static void moveIntoPlace(File source, File target) throws IOException {
+		
+		Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+		Path directory = target.getAbsoluteFile().toPath().getParent();
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// some platforms, such as Windows, can't open a directory to sync it
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Reads a network written by write. The weights are stored in the default precision whatever
+	 * precision they were written in
+	 * 
+	 * @param file
+	 *            - the file the network was written to
+	 * @return the network
+	 * @throws IOException
+	 *             if the file can't be read, isn't in this format, or doesn't match its checksum
+	 */
+	static NeuralNetwork read(File file) throws IOException {
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			
+			if (channel.size() < HEADER) {
+				throw new IOException(file + " is too short to be a network");
+			}
+			
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			ByteBuffer in = mapped.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if (in.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a network");
+			}
+			if (in.getInt(4) != VERSION) {
+				throw new IOException(file + " is version " + in.getInt(4) + " of the format rather than " + VERSION);
+			}
+			
+			int type = in.getInt(8);
+			if (type != SINGLE && type != HALF) {
+				throw new IOException(file + " holds values of unknown type " + type);
+			}
+			int bytes = type == HALF ? 2 : 4;
+			
+			CRC32 checksum = new CRC32();
+			in.position(CHECKSUM + 4);
+			checksum.update(in);
+			if ((int) checksum.getValue() != in.getInt(CHECKSUM)) {
+				throw new IOException(file + " does not match its checksum, so it is corrupt");
+			}
+			
+			int inputLayerSize = in.getInt(16);
+			int outputLayerSize = in.getInt(20);
+			int hiddenLayerSize = in.getInt(24);
+			int numberOfHiddenLayers = in.getInt(28);
+			int layers = in.getInt(32);
+			
+			if (numberOfHiddenLayers < 1 || layers != numberOfHiddenLayers + 1) {
+				throw new IOException(file + " has " + layers + " weight matrices for " + numberOfHiddenLayers + " hidden layers");
+			}
+			if (channel.size() < HEADER + (long) TABLE_ENTRY * layers) {
+				throw new IOException(file + " is too short for its table of " + layers + " weight matrices");
+			}
+			
+			Matrix[] w = new Matrix[layers];
+			for (int i = 0; i < layers; i++) {
+				
+				int rows = in.getInt(HEADER + TABLE_ENTRY * i);
+				int columns = in.getInt(HEADER + TABLE_ENTRY * i + 4);
+				long offset = in.getLong(HEADER + TABLE_ENTRY * i + 8);
+				
+				int expectedRows = i == layers - 1 ? outputLayerSize : hiddenLayerSize;
+				int expectedColumns = i == 0 ? inputLayerSize : hiddenLayerSize;
+				if (rows != expectedRows || columns != expectedColumns) {
+					throw new IOException(file + " has weight matrix " + i + " of " + rows + "x" + columns + " rather than " + expectedRows + "x" + expectedColumns);
+				}
+				if (offset % ALIGNMENT != 0 || offset < 0 || offset + (long) bytes * rows * columns > channel.size()) {
+					throw new IOException(file + " has weight matrix " + i + " at offset " + offset + ", which is misaligned or past its end");
+				}
+				
+				in.clear();
+				in.position((int) offset);
+				ByteBuffer block = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+				
+				w[i] = new Matrix(rows, columns);
+				if (type == HALF) {
+					
+					ShortBuffer values = block.asShortBuffer();
+					w[i].setData(out -> {
+						for (int j = 0; j < rows * columns; j++) {
+							out.put(j, Half.toFloat(values.get(j)));
+						}
+					});
+					
+				} else {
+					
+					FloatBuffer values = (FloatBuffer) block.asFloatBuffer().limit(rows * columns);
+					w[i].setData(out -> out.put(values));
+					
+				}
+				
+			}
+			
+			return new NeuralNetwork(inputLayerSize, outputLayerSize, hiddenLayerSize, numberOfHiddenLayers, w);
+			
+		}
+		
+	}
+	
+	private static long align(long bytes) {
+		
+		return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+		
+	}
+	
+	private static int align(int bytes) {
+		
+		return (int) align((long) bytes);
+		
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		
+	}
+	
+}
@@ -3,14 +3,14 @@ package core;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * 
@@ -30,10 +30,8 @@ public class NeuralNetwork implements Serializable {
 	
 	private transient Matrix[] w;
 	private transient Matrix[] djdw;
-	private transient Matrix[] x;
-	private transient Matrix[] delta;
-	
-	private transient Matrix yDif; // y - yHat
+	private transient ThreadLocal<Map<Integer, Workspace>> workspaces;
+	private transient float lossScale;
 	
 	/**
 	 * 
@@ -88,6 +86,26 @@ public class NeuralNetwork implements Serializable {
 		
 	}
 	
+	/**
+	 * Creates a NeuralNetwork with the weights given, as read from a file
+	 * 
+	 * @see ModelFile
+	 */
+	NeuralNetwork(int inputLayerSize, int outputLayerSize, int hiddenLayerSize, int numberOfHiddenLayers, Matrix[] w) {
+		
+		assert w.length == numberOfHiddenLayers + 1;
+		
+		this.inputLayerSize = inputLayerSize;
+		this.outputLayerSize = outputLayerSize;
+		this.hiddenLayerSize = hiddenLayerSize;
+		this.numberOfHiddenLayers = numberOfHiddenLayers;
+		
+		initEmptyMatrices();
+		System.arraycopy(w, 0, this.w, 0, w.length);
+		populateDjdw();
+		
+	}
+	
 	/**
 	 * Creates the djdw matrices to be the same size as w 
 	 */
@@ -113,20 +131,79 @@ public class NeuralNetwork implements Serializable {
 	}
 	
 	/**
-	 * Creates the lists that contain w, x, djdw, delta
+	 * Creates the lists that contain w, djdw and the workspaces. Every thread has its own workspaces
+	 * so that several threads can forward through the network at once
 	 */
 	private void initEmptyMatrices() {
 		
 		w = new Matrix[numberOfHiddenLayers + 1];
-		x = new Matrix[numberOfHiddenLayers + 2];
 		djdw = new Matrix[w.length];
-		delta = new Matrix[w.length];
+		workspaces = ThreadLocal.withInitial(HashMap::new);
+		lossScale = 1;
+		
+	}
+	
+	/**
+	 * Finds the workspace of the calling thread for a batch width, creating it the first time the
+	 * width is seen
+	 */
+	private Workspace getWorkspace(int columns) {
+		
+		Map<Integer, Workspace> workspaces = this.workspaces.get();
+		
+		Workspace workspace = workspaces.get(columns);
+		if (workspace == null) {
+			
+			workspace = new Workspace(columns);
+			workspaces.put(columns, workspace);
+			
+		}
+		return workspace;
 		
 	}
 	
 	/**
 	 * 
-	 * Forwards the data x0 through the network and returns the resultant Matrix y
+	 * Releases the activations and deltas the calling thread has kept for every batch width it has
+	 * seen. They are created again by the next call that needs them. Those of other threads are
+	 * returned to the pool once the threads have finished
+	 * 
+	 */
+	public void releaseWorkspaces() {
+		
+		Map<Integer, Workspace> workspaces = this.workspaces.get();
+		
+		for (Workspace workspace : workspaces.values()) {
+			workspace.release();
+		}
+		workspaces.clear();
+		
+	}
+	
+	/**
+	 * 
+	 * Releases the weights, the partial derivatives and the workspaces of the calling thread, after
+	 * which the network must not be used
+	 * 
+	 */
+	public void release() {
+		
+		releaseWorkspaces();
+		for (int i = 0; i < w.length; i++) {
+			
+			w[i].release();
+			djdw[i].release();
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Forwards the data x0 through the network and returns the resultant Matrix y. The activations
+	 * are kept between calls for each batch width, so the returned matrix is overwritten by the next
+	 * call to forward with as many columns from the same thread. Several threads may forward through
+	 * the network at once, but it must not be trained at the same time
 	 * 
 	 * @param x0
 	 *            - input data
@@ -136,18 +213,17 @@ public class NeuralNetwork implements Serializable {
 		
 		assert x0.getRows() == inputLayerSize;
 		
+		Matrix[] x = getWorkspace(x0.getColumns()).x;
+		
 		x[0] = x0;
-		for (int i = 1; i < numberOfHiddenLayers + 1; i++) {
-			x[i] = new Matrix(hiddenLayerSize, x0.getColumns());
-		}
-		x[numberOfHiddenLayers + 1] = new Matrix(outputLayerSize, x0.getColumns());
 		
 		for (int i = 0; i < w.length; i++) {
 			
-			Matrix.dot(w[i], x[i], x[i + 1], false, false);
-			Matrix.sigmoid(x[i + 1], x[i + 1]);
+			Profiler.setLayer(i);
+			Matrix.dotSigmoid(w[i], x[i], x[i + 1]);
 			
 		}
+		Profiler.setLayer(-1);
 		
 		return x[numberOfHiddenLayers + 1];
 		
@@ -187,12 +263,79 @@ public class NeuralNetwork implements Serializable {
 	 */
 	public float getCost(Matrix x, Matrix y, Matrix yHat) {
 		
-		yDif = new Matrix(outputLayerSize, x.getColumns());
+		return 0.5f * Matrix.squaredError(y, yHat) / x.getColumns();
 		
-		Matrix.sub(y, yHat, yDif);
-		Matrix.pow(yDif, 2f, yDif);
+	}
+	
+	/**
+	 * 
+	 * Queues the forward pass and the cost without waiting for them, so the host can queue more work
+	 * while the cost is read back
+	 * 
+	 * @see #getCost(Matrix, Matrix)
+	 * 
+	 * @param x0
+	 *            - the input data
+	 * @param y
+	 *            - the expected output
+	 * @return a future completed with the cost
+	 */
+	public CompletableFuture<Float> getCostAsync(Matrix x0, Matrix y) {
 		
-		return 0.5f * Matrix.sum(yDif) / x.getColumns();
+		return getCostAsync(x0, y, forward(x0));
+		
+	}
+	
+	/**
+	 * 
+	 * Queues the cost without waiting for it
+	 * 
+	 * @see #getCost(Matrix, Matrix, Matrix)
+	 * 
+	 * @param x
+	 *            - the input data
+	 * @param y
+	 *            - the expected output data
+	 * @param yHat
+	 *            - the actual output data
+	 * @return a future completed with the cost
+	 */
+	public CompletableFuture<Float> getCostAsync(Matrix x, Matrix y, Matrix yHat) {
+		
+		int samples = x.getColumns();
+		return Matrix.squaredErrorAsync(y, yHat).thenApply(error -> 0.5f * error / samples);
+		
+	}
+	
+	/**
+	 * 
+	 * Takes the forward and backward pass of one training step, finding the cost of the data along
+	 * with the partial derivatives of the weights. The cost is queued from the output of the forward
+	 * pass before the backward pass, and read back while the backward pass and whatever is queued
+	 * after it run, so the step only forwards the data once. The passes are profiled in the
+	 * "forward" and "backward" phases, and how long each took to queue is kept in the result
+	 * 
+	 * @param x0
+	 *            - the input data
+	 * @param y
+	 *            - the expected output data
+	 * @return the cost and the partial derivatives, which are overwritten by the next step with as
+	 *         many columns
+	 */
+	public Step trainStep(Matrix x0, Matrix y) {
+		
+		long start = System.nanoTime();
+		Profiler.setPhase("forward");
+		Matrix yHat = forward(x0);
+		CompletableFuture<Float> cost = getCostAsync(x0, y, yHat);
+		long forwardNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		Profiler.setPhase("backward");
+		Matrix[] djdw = getCostPrime(x0, y, yHat);
+		long backwardNanos = System.nanoTime() - start;
+		
+		return new Step(cost, djdw, forwardNanos, backwardNanos);
 		
 	}
 	
@@ -222,39 +365,35 @@ public class NeuralNetwork implements Serializable {
 	 *            - the expected output
 	 * @param yHat
 	 *            - the actual output
-	 * @return an array containing the partial derivatives of the weights
+	 * @return an array containing the partial derivatives of the weights, multiplied by the loss
+	 *         scale
 	 */
 	public Matrix[] getCostPrime(Matrix x0, Matrix y, Matrix yHat) {
 		
 		assert x0.getRows() == inputLayerSize && y.getRows() == outputLayerSize;
 		
+		Workspace workspace = getWorkspace(x0.getColumns());
+		Matrix[] x = workspace.x;
+		Matrix[] delta = workspace.delta;
+		
 		for (int i = w.length - 1; i >= 0; i--) {
 			
-			if (delta[i] == null || delta[i].getColumns() != x0.getColumns() || delta[i].getRows() != x[i + 1].getRows()) {
-				delta[i] = new Matrix(x[i + 1].getRows(), x0.getColumns());
-			}
-			
-			Matrix xPrime = new Matrix(x[i + 1].getRows(), x[i + 1].getColumns());
-			Matrix.sigmoidPrime(x[i + 1], xPrime);
-			
+			Profiler.setLayer(i);
 			if (i == w.length - 1) {
 				
-				Matrix.sub(yHat, y, yDif);
-				Matrix.multiply(yDif, xPrime, delta[i]);
+				Matrix.subSigmoidPrime(yHat, y, x[i + 1], delta[i]);
+				if (lossScale != 1) {
+					Matrix.multiply(lossScale, delta[i], delta[i]);
+				}
 				
 			} else {
-				
-				Matrix temp = new Matrix(w[i + 1].getColumns(), delta[i + 1].getColumns());
-				Matrix.dot(w[i + 1], delta[i + 1], temp, true, false);
-				Matrix.multiply(temp, xPrime, delta[i]);
-				temp.release();
-				
+				Matrix.dotATSigmoidPrime(w[i + 1], delta[i + 1], x[i + 1], delta[i]);
 			}
-			xPrime.release();
 			
 			Matrix.dot(delta[i], x[i], djdw[i], false, true);
 			
 		}
+		Profiler.setLayer(-1);
 		
 		return djdw;
 		
@@ -280,6 +419,26 @@ public class NeuralNetwork implements Serializable {
 		
 	}
 	
+	/**
+	 * 
+	 * @return the dimensions of the hidden layers
+	 */
+	public int getHiddenLayerSize() {
+		
+		return hiddenLayerSize;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the amount of hidden layers
+	 */
+	public int getNumberOfHiddenLayers() {
+		
+		return numberOfHiddenLayers;
+		
+	}
+	
 	/**
 	 * 
 	 * @return the list of matrices which are the weights of the neural network
@@ -303,7 +462,33 @@ public class NeuralNetwork implements Serializable {
 	
 	/**
 	 * 
-	 * Writes the network to a file
+	 * @return what the partial derivatives of the weights are multiplied by
+	 */
+	public float getLossScale() {
+		
+		return lossScale;
+		
+	}
+	
+	/**
+	 * 
+	 * Sets what the partial derivatives of the weights are multiplied by, so that small ones don't
+	 * underflow when the network is stored in half precision
+	 * 
+	 * @see trainers.OptimisationMethod#setLossScaling(boolean)
+	 * 
+	 * @param lossScale
+	 *            - the scale, 1 for none
+	 */
+	public void setLossScale(float lossScale) {
+		
+		this.lossScale = lossScale;
+		
+	}
+	
+	/**
+	 * 
+	 * Writes the network to a file in the binary format of ModelFile
 	 * 
 	 * @param file
 	 *            - where the network should be written
@@ -311,17 +496,19 @@ public class NeuralNetwork implements Serializable {
 	 */
 	public void save(File file) throws IOException {
 		
-		file.getParentFile().mkdirs();
-		ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(file)));
-		oos.writeObject(this);
-		oos.writeObject(w);
-		oos.close();
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		ModelFile.write(this, file);
 		
 	}
 	
 	/**
 	 * 
-	 * Reads a network from a file
+	 * Reads a network from a file, either in the binary format of ModelFile or serialized as save
+	 * used to write it
+	 * 
+	 * @see ConvertNetwork
 	 * 
 	 * @param file
 	 *            - where to read from
@@ -331,6 +518,10 @@ public class NeuralNetwork implements Serializable {
 	 */
 	public static NeuralNetwork load(File file) throws IOException, ClassNotFoundException {
 		
+		if (ModelFile.isModelFile(file)) {
+			return ModelFile.read(file);
+		}
+		
 		ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new FileInputStream(file)));
 		NeuralNetwork network = (NeuralNetwork) ois.readObject();
 		network.initEmptyMatrices();
@@ -342,4 +533,111 @@ public class NeuralNetwork implements Serializable {
 		
 	}
 	
+	/**
+	 * 
+	 * The result of trainStep
+	 *
+	 */
+	public static final class Step {
+		
+		private final CompletableFuture<Float> cost;
+		private final Matrix[] djdw;
+		private final long forwardNanos;
+		private final long backwardNanos;
+		
+		private Step(CompletableFuture<Float> cost, Matrix[] djdw, long forwardNanos, long backwardNanos) {
+			
+			this.cost = cost;
+			this.djdw = djdw;
+			this.forwardNanos = forwardNanos;
+			this.backwardNanos = backwardNanos;
+			
+		}
+		
+		/**
+		 * 
+		 * @return the cost of the data before the step, waiting for it to be read back
+		 */
+		public float getCost() {
+			
+			return cost.join();
+			
+		}
+		
+		/**
+		 * 
+		 * @return a future completed with the cost of the data before the step
+		 */
+		public CompletableFuture<Float> getCostAsync() {
+			
+			return cost;
+			
+		}
+		
+		/**
+		 * 
+		 * @return the partial derivatives of the weights, multiplied by the loss scale
+		 */
+		public Matrix[] getDjdw() {
+			
+			return djdw;
+			
+		}
+		
+		/**
+		 * 
+		 * @return how long the calling thread spent on the forward pass and queuing the cost
+		 */
+		public long getForwardNanos() {
+			
+			return forwardNanos;
+			
+		}
+		
+		/**
+		 * 
+		 * @return how long the calling thread spent on the backward pass
+		 */
+		public long getBackwardNanos() {
+			
+			return backwardNanos;
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * The activations and deltas of the network for one batch width, which are kept so that
+	 * repeated calls with the same width do not allocate anything
+	 * 
+	 */
+	private class Workspace {
+		
+		private final Matrix[] x;
+		private final Matrix[] delta;
+		
+		private Workspace(int columns) {
+			
+			x = new Matrix[numberOfHiddenLayers + 2];
+			delta = new Matrix[numberOfHiddenLayers + 1];
+			
+			for (int i = 1; i < x.length; i++) {
+				x[i] = new Matrix(i == x.length - 1 ? outputLayerSize : hiddenLayerSize, columns);
+				delta[i - 1] = new Matrix(x[i].getRows(), columns);
+			}
+			
+		}
+		
+		private void release() {
+			
+			for (int i = 1; i < x.length; i++) {
+				x[i].release();
+				delta[i - 1].release();
+			}
+			
+		}
+		
+	}
+	
 }
@@ -5,7 +5,6 @@ import static java.lang.Math.exp;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 import static java.lang.Math.sin;
-import static java.lang.Math.sqrt;
 
 import java.util.Random;
 
@@ -83,8 +82,6 @@ public class NumericalGradientChecking {
 				
 				djdw2Data[i][j] = (loss2 - loss1) / (2 * EPSILON);
 				
-				System.gc();
-				
 			}
 			network.getW()[i].setData(initialWeights[i]);
 		}
@@ -113,8 +110,7 @@ public class NumericalGradientChecking {
 	
 	public static double norm(Matrix a) {
 		
-		Matrix.pow(a, 2, a);
-		return sqrt(Matrix.sum(a));
+		return Matrix.norm(a);
 		
 	}
 	
@@ -0,0 +1,1402 @@
+package core;
+
+import static org.jocl.CL.CL_COMPLETE;
+import static org.jocl.CL.CL_CONTEXT_PLATFORM;
+import static org.jocl.CL.CL_DEVICE_MAX_COMPUTE_UNITS;
+import static org.jocl.CL.CL_DEVICE_MAX_WORK_GROUP_SIZE;
+import static org.jocl.CL.CL_DEVICE_PARTITION_EQUALLY;
+import static org.jocl.CL.CL_DEVICE_TYPE_ALL;
+import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_MAP_WRITE;
+import static org.jocl.CL.CL_MEM_ALLOC_HOST_PTR;
+import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
+import static org.jocl.CL.CL_MEM_READ_ONLY;
+import static org.jocl.CL.CL_MEM_READ_WRITE;
+import static org.jocl.CL.CL_MEM_WRITE_ONLY;
+import static org.jocl.CL.CL_PROFILING_COMMAND_END;
+import static org.jocl.CL.CL_PROFILING_COMMAND_QUEUED;
+import static org.jocl.CL.CL_PROFILING_COMMAND_START;
+import static org.jocl.CL.CL_QUEUE_PROFILING_ENABLE;
+import static org.jocl.CL.CL_TRUE;
+import static org.jocl.CL.clCreateBuffer;
+import static org.jocl.CL.clCreateCommandQueue;
+import static org.jocl.CL.clCreateContext;
+import static org.jocl.CL.clCreateSubDevices;
+import static org.jocl.CL.clEnqueueCopyBuffer;
+import static org.jocl.CL.clEnqueueCopyBufferRect;
+import static org.jocl.CL.clEnqueueMapBuffer;
+import static org.jocl.CL.clEnqueueMarker;
+import static org.jocl.CL.clEnqueueNDRangeKernel;
+import static org.jocl.CL.clEnqueueReadBuffer;
+import static org.jocl.CL.clEnqueueUnmapMemObject;
+import static org.jocl.CL.clEnqueueWriteBuffer;
+import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clFlush;
+import static org.jocl.CL.clGetDeviceIDs;
+import static org.jocl.CL.clGetDeviceInfo;
+import static org.jocl.CL.clGetEventProfilingInfo;
+import static org.jocl.CL.clGetPlatformIDs;
+import static org.jocl.CL.clReleaseCommandQueue;
+import static org.jocl.CL.clReleaseEvent;
+import static org.jocl.CL.clReleaseKernel;
+import static org.jocl.CL.clReleaseMemObject;
+import static org.jocl.CL.clRetainEvent;
+import static org.jocl.CL.clSetEventCallback;
+import static org.jocl.CL.clSetKernelArg;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.jocl.CL;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_command_queue;
+import org.jocl.cl_context;
+import org.jocl.cl_context_properties;
+import org.jocl.cl_device_id;
+import org.jocl.cl_device_partition_property;
+import org.jocl.cl_event;
+import org.jocl.cl_kernel;
+import org.jocl.cl_mem;
+import org.jocl.cl_platform_id;
+
+import core.Matrix.Precision;
+
+/**
+ * 
+ * Backend which runs every operation as an OpenCL kernel on the first device of the first platform.
+ * More devices of the platform, or sub-devices of the first one, can be put in the same context by
+ * setting "matrix.opencl.devices" or "matrix.opencl.subdevices", and every matrix can be used on
+ * any of them.
+ * 
+ * Operations can be queued from many threads at once, as each thread has its own kernels and its
+ * own queue on each device.
+ * 
+ * Matrices in half precision are converted to and from single precision on the host when they are
+ * read and written, and each kernel is built once for each precision.
+ * 
+ * When Profiler is enabled the queues are created with profiling on, and every kernel and transfer
+ * is queued with an event that its times are read from once it completes
+ * 
+ * @author Kacper
+ *
+ */
+@SuppressWarnings("deprecation")
+class OpenCLBackend implements MatrixBackend {
+	
+	/**
+	 * Uses the old one work item per element dot kernels instead of the tiled ones, which is only
+	 * useful for comparing the two. The fused backpropagation kernels are always tiled
+	 */
+	private static final boolean NAIVE_DOT = Boolean.getBoolean("matrix.opencl.naivedot");
+	
+	/**
+	 * Must match TS and WPT in the tiled dot kernels
+	 */
+	private static final int TILE_SIZE = 32;
+	private static final int WORK_PER_THREAD = 8;
+	
+	/**
+	 * The most work groups a reduction is split over, each of which leaves one partial result for
+	 * the host to add up
+	 */
+	private static final int REDUCTION_GROUPS = 64;
+	private static final int REDUCTION_LOCAL_SIZE = 256;
+	
+	/**
+	 * How many devices of the first platform to use, or 0 for all of them
+	 */
+	private static final int DEVICES = Integer.getInteger("matrix.opencl.devices", 1);
+	
+	/**
+	 * Splits the first device into this many sub-devices instead, which is how data parallel
+	 * training can be tried on a single CPU
+	 */
+	private static final int SUB_DEVICES = Integer.getInteger("matrix.opencl.subdevices", 0);
+	
+	private cl_context context;
+	private cl_device_id[] devices;
+	
+	private final Map<Precision, KernelProgram> programs = new EnumMap<>(Precision.class);
+	
+	private int reductionLocalSize;
+	
+	/**
+	 * Every queue that any thread has created, so that finish can wait for all of them
+	 */
+	private final List<cl_command_queue> queues = new CopyOnWriteArrayList<>();
+	
+	private final ThreadLocal<Dispatch> dispatches = ThreadLocal.withInitial(this::createDispatch);
+	
+	/**
+	 * The dispatch of every thread that has used the backend, so that those of threads which have
+	 * died can be released. Guarded by itself
+	 */
+	private final List<Dispatch> allDispatches = new ArrayList<>();
+	
+	OpenCLBackend() throws IOException {
+		
+		final int platformIndex = 0;
+		final long deviceType = CL_DEVICE_TYPE_ALL;
+		final int deviceIndex = 0;
+		
+		// Enable exceptions and subsequently omit error checks
+		CL.setExceptionsEnabled(true);
+		
+		// Obtain the number of platforms
+		int numPlatformsArray[] = new int[1];
+		clGetPlatformIDs(0, null, numPlatformsArray);
+		int numPlatforms = numPlatformsArray[0];
+		
+		// Obtain a platform ID
+		cl_platform_id platforms[] = new cl_platform_id[numPlatforms];
+		clGetPlatformIDs(platforms.length, platforms, null);
+		cl_platform_id platform = platforms[platformIndex];
+		
+		// Initialize the context properties
+		cl_context_properties contextProperties = new cl_context_properties();
+		contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
+		
+		// Obtain the number of devices for the platform
+		int numDevicesArray[] = new int[1];
+		clGetDeviceIDs(platform, deviceType, 0, null, numDevicesArray);
+		int numDevices = numDevicesArray[0];
+		
+		// Obtain the device IDs
+		cl_device_id platformDevices[] = new cl_device_id[numDevices];
+		clGetDeviceIDs(platform, deviceType, numDevices, platformDevices, null);
+		
+		cl_device_id ids[];
+		if (SUB_DEVICES > 0) {
+			ids = createSubDevices(platformDevices[deviceIndex], SUB_DEVICES);
+		} else {
+			ids = Arrays.copyOf(platformDevices, DEVICES <= 0 ? numDevices : Math.min(DEVICES, numDevices));
+		}
+		
+		// Create a context for the selected devices, which every buffer is shared between
+		context = clCreateContext(contextProperties, ids.length, ids, null, null, null);
+		
+		// Each thread creates its own command-queues, see Dispatch
+		devices = ids;
+		
+		// The reductions need a power of two local size that every device supports
+		reductionLocalSize = REDUCTION_LOCAL_SIZE;
+		for (cl_device_id device : devices) {
+			
+			long maxWorkGroupSize[] = new long[1];
+			clGetDeviceInfo(device, CL_DEVICE_MAX_WORK_GROUP_SIZE, Sizeof.size_t, Pointer.to(maxWorkGroupSize), null);
+			while (reductionLocalSize > maxWorkGroupSize[0]) {
+				reductionLocalSize /= 2;
+			}
+			
+		}
+		
+		// the sources are read now so that a missing kernel is found straight away, but nothing is
+		// compiled until the first operation
+		for (Precision precision : Precision.values()) {
+			programs.put(precision, new KernelProgram(context, ids, precision));
+		}
+		
+	}
+	
+	/**
+	 * Partitions a device into sub-devices with an equal share of its compute units
+	 */
+	private static cl_device_id[] createSubDevices(cl_device_id parent, int count) {
+		
+		int computeUnits[] = new int[1];
+		clGetDeviceInfo(parent, CL_DEVICE_MAX_COMPUTE_UNITS, Sizeof.cl_uint, Pointer.to(computeUnits), null);
+		
+		cl_device_partition_property properties = new cl_device_partition_property();
+		properties.addProperty(CL_DEVICE_PARTITION_EQUALLY, Math.max(1, computeUnits[0] / count));
+		
+		int numSubDevices[] = new int[1];
+		clCreateSubDevices(parent, properties, 0, null, numSubDevices);
+		cl_device_id subDevices[] = new cl_device_id[numSubDevices[0]];
+		clCreateSubDevices(parent, properties, subDevices.length, subDevices, null);
+		
+		return Arrays.copyOf(subDevices, Math.min(count, subDevices.length));
+		
+	}
+	
+	private static cl_mem mem(Matrix a) {
+		
+		return (cl_mem) a.buffer;
+		
+	}
+	
+	/**
+	 * @return the size of the storage of a matrix in bytes
+	 */
+	private static long bytes(Matrix a) {
+		
+		return (long) a.getPrecision().getBytes() * a.getSize();
+		
+	}
+	
+	@Override
+	public String getName() {
+		
+		return "opencl";
+		
+	}
+	
+	@Override
+	public Object allocate(int size, Precision precision) {
+		
+		return clCreateBuffer(context, CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR, (long) precision.getBytes() * size, null, null);
+		
+	}
+	
+	@Override
+	public void release(Object buffer) {
+		
+		clReleaseMemObject((cl_mem) buffer);
+		
+	}
+	
+	@Override
+	public Object allocateQuantized(byte[] values) {
+		
+		return clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, values.length, Pointer.to(values), null);
+		
+	}
+	
+	@Override
+	public void read(Matrix a, float[] data) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		if (a.getPrecision() == Precision.HALF) {
+			
+			ShortBuffer host = halfBuffer(a.getSize());
+			cl_event event = profiledEvent();
+			clEnqueueReadBuffer(dispatch.queue, mem(a), CL_TRUE, 0, bytes(a), Pointer.to(host), 0, null, event);
+			record(event, "read", a);
+			fromHalf(host, data);
+			
+		} else {
+			
+			cl_event event = profiledEvent();
+			clEnqueueReadBuffer(dispatch.queue, mem(a), CL_TRUE, 0, bytes(a), Pointer.to(data), 0, null, event);
+			record(event, "read", a);
+			
+		}
+		
+	}
+	
+	@Override
+	public CompletableFuture<float[]> readAsync(Matrix a) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		if (a.getPrecision() == Precision.HALF) {
+			
+			ShortBuffer host = halfBuffer(a.getSize());
+			
+			cl_event event = new cl_event();
+			clEnqueueReadBuffer(dispatch.queue, mem(a), CL_FALSE, 0, bytes(a), Pointer.to(host), 0, null, event);
+			profile(event, "read", a);
+			
+			return whenComplete(event, () -> {
+				
+				float[] data = new float[a.getSize()];
+				fromHalf(host, data);
+				return data;
+				
+			});
+			
+		}
+		
+		FloatBuffer host = directBuffer(a.getSize());
+		
+		cl_event event = new cl_event();
+		clEnqueueReadBuffer(dispatch.queue, mem(a), CL_FALSE, 0, bytes(a), Pointer.to(host), 0, null, event);
+		profile(event, "read", a);
+		
+		return whenComplete(event, () -> {
+			
+			float[] data = new float[a.getSize()];
+			host.get(data);
+			return data;
+			
+		});
+		
+	}
+	
+	@Override
+	public void write(Matrix a, float[] data) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		Pointer pointer;
+		Object host;
+		if (a.getPrecision() == Precision.HALF) {
+			
+			ShortBuffer half = toHalf(data, a.getSize());
+			pointer = Pointer.to(half);
+			host = half;
+			
+		} else {
+			
+			FloatBuffer single = directBuffer(a.getSize());
+			single.put(data, 0, a.getSize());
+			single.rewind();
+			pointer = Pointer.to(single);
+			host = single;
+			
+		}
+		
+		// the copy is kept reachable by the callback until the device has read it
+		cl_event event = new cl_event();
+		clEnqueueWriteBuffer(dispatch.queue, mem(a), CL_FALSE, 0, bytes(a), pointer, 0, null, event);
+		profile(event, "write", a);
+		whenComplete(event, () -> host);
+		
+	}
+	
+	@Override
+	public void write(Matrix a, Consumer<FloatBuffer> writer) {
+		
+		if (a.getPrecision() == Precision.HALF) {
+			
+			// the values have to be converted, so they are written to the heap first
+			float[] data = new float[a.getSize()];
+			writer.accept(FloatBuffer.wrap(data));
+			write(a, data);
+			return;
+			
+		}
+		
+		Dispatch dispatch = dispatches.get();
+		
+		// the storage is allocated in host memory, so mapping it lets writer fill it without a copy
+		cl_event event = profiledEvent();
+		ByteBuffer mapped = clEnqueueMapBuffer(dispatch.queue, mem(a), CL_TRUE, CL_MAP_WRITE, 0, bytes(a), 0, null, event, null);
+		record(event, "map", a);
+		try {
+			writer.accept(mapped.order(ByteOrder.nativeOrder()).asFloatBuffer());
+		} finally {
+			
+			event = profiledEvent();
+			clEnqueueUnmapMemObject(dispatch.queue, mem(a), mapped, 0, null, event);
+			record(event, "unmap", a);
+			
+		}
+		
+	}
+	
+	@Override
+	public CompletableFuture<Void> marker() {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_event event = new cl_event();
+		clEnqueueMarker(dispatch.queue, event);
+		
+		return whenComplete(event, () -> null);
+		
+	}
+	
+	@Override
+	public CompletableFuture<Void> barrier() {
+		
+		// the lock keeps the queues from being released while markers are queued on them
+		synchronized (allDispatches) {
+			
+			List<CompletableFuture<Void>> markers = new ArrayList<>();
+			for (cl_command_queue queue : queues) {
+				
+				cl_event event = new cl_event();
+				clEnqueueMarker(queue, event);
+				markers.add(whenComplete(event, () -> null));
+				
+			}
+			return CompletableFuture.allOf(markers.toArray(new CompletableFuture<?>[0]));
+			
+		}
+		
+	}
+	
+	@Override
+	public void finish() {
+		
+		// the lock is held while the queues are finished, so that no thread can release one of them
+		// in the meantime
+		synchronized (allDispatches) {
+			
+			releaseDeadDispatches();
+			
+			for (cl_command_queue queue : queues) {
+				clFinish(queue);
+			}
+			
+		}
+		
+	}
+	
+	private Dispatch createDispatch() {
+		
+		synchronized (allDispatches) {
+			
+			// threads come and go, such as the producer of every StochasticTraining, so this is
+			// where what the ones that have gone created is released
+			releaseDeadDispatches();
+			
+			Dispatch dispatch = new Dispatch();
+			allDispatches.add(dispatch);
+			return dispatch;
+			
+		}
+		
+	}
+	
+	/**
+	 * Releases the queues, buffers and kernels of the dispatches of every thread that has died
+	 */
+	private void releaseDeadDispatches() {
+		
+		synchronized (allDispatches) {
+			
+			for (Iterator<Dispatch> iterator = allDispatches.iterator(); iterator.hasNext();) {
+				
+				Dispatch dispatch = iterator.next();
+				Thread owner = dispatch.owner.get();
+				if (owner == null || !owner.isAlive()) {
+					
+					dispatch.release();
+					iterator.remove();
+					
+				}
+				
+			}
+			
+		}
+		
+	}
+	
+	@Override
+	public int getDeviceCount() {
+		
+		return devices.length;
+		
+	}
+	
+	@Override
+	public int getDevice() {
+		
+		return dispatches.get().index;
+		
+	}
+	
+	@Override
+	public void setDevice(int index) {
+		
+		dispatches.get().setDevice(index);
+		
+	}
+	
+	/**
+	 * Completes a future with the result once the event has completed. The result is computed on a
+	 * thread owned by the OpenCL implementation, so it should only do a little work
+	 */
+	private <T> CompletableFuture<T> whenComplete(cl_event event, Supplier<T> result) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		CompletableFuture<T> future = new CompletableFuture<>();
+		
+		clSetEventCallback(event, CL_COMPLETE, (completed, status, data) -> {
+			
+			clReleaseEvent(completed);
+			if (status != CL_COMPLETE) {
+				future.completeExceptionally(new IllegalStateException("OpenCL command failed with status " + status));
+			} else {
+				future.complete(result.get());
+			}
+			
+		}, null);
+		clFlush(dispatch.queue);
+		
+		return future;
+		
+	}
+	
+	/**
+	 * Queues a kernel whose arguments have been set over dispatch.global, in work groups of local
+	 * unless it is null
+	 * 
+	 * @param out
+	 *            - the matrix the kernel writes, which it is profiled with the shape of
+	 */
+	private void enqueueKernel(Dispatch dispatch, cl_kernel kernel, int dimensions, long[] local, Matrix out) {
+		
+		cl_event event = profiledEvent();
+		clEnqueueNDRangeKernel(dispatch.queue, kernel, dimensions, null, dispatch.global, local, 0, null, event);
+		record(event, dispatch.names.get(kernel), out);
+		
+	}
+	
+	/**
+	 * @return an event to queue a command with so that it can be profiled, or null if profiling is
+	 *         off
+	 */
+	private static cl_event profiledEvent() {
+		
+		return Profiler.isEnabled() ? new cl_event() : null;
+		
+	}
+	
+	/**
+	 * Profiles the command of an event from profiledEvent, and releases the event
+	 */
+	private void record(cl_event event, String operation, Matrix shape) {
+		
+		if (event != null) {
+			
+			profile(event, operation, shape);
+			clReleaseEvent(event);
+			
+		}
+		
+	}
+	
+	/**
+	 * Records the times of the command of an event with Profiler once it has completed, if profiling
+	 * is on. The event is retained until then, so whoever queued the command may release it as usual
+	 */
+	private void profile(cl_event event, String operation, Matrix shape) {
+		
+		if (!Profiler.isEnabled()) {
+			return;
+		}
+		
+		Profiler.Record record = Profiler.begin(operation, shape, dispatches.get().index);
+		
+		clRetainEvent(event);
+		clSetEventCallback(event, CL_COMPLETE, (completed, status, data) -> {
+			
+			// a command that failed has no times
+			if (status != CL_COMPLETE) {
+				
+				clReleaseEvent(completed);
+				record.discard();
+				return;
+				
+			}
+			
+			long[] queued = new long[1];
+			long[] start = new long[1];
+			long[] end = new long[1];
+			clGetEventProfilingInfo(completed, CL_PROFILING_COMMAND_QUEUED, Sizeof.cl_ulong, Pointer.to(queued), null);
+			clGetEventProfilingInfo(completed, CL_PROFILING_COMMAND_START, Sizeof.cl_ulong, Pointer.to(start), null);
+			clGetEventProfilingInfo(completed, CL_PROFILING_COMMAND_END, Sizeof.cl_ulong, Pointer.to(end), null);
+			clReleaseEvent(completed);
+			
+			record.end(queued[0], start[0], end[0]);
+			
+		}, null);
+		
+	}
+	
+	private static FloatBuffer directBuffer(int size) {
+		
+		return ByteBuffer.allocateDirect(Sizeof.cl_float * size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		
+	}
+	
+	private static ShortBuffer halfBuffer(int size) {
+		
+		return ByteBuffer.allocateDirect(Sizeof.cl_half * size).order(ByteOrder.nativeOrder()).asShortBuffer();
+		
+	}
+	
+	private static ShortBuffer toHalf(float[] data, int size) {
+		
+		ShortBuffer host = halfBuffer(size);
+		for (int i = 0; i < size; i++) {
+			host.put(i, Half.fromFloat(data[i]));
+		}
+		return host;
+		
+	}
+	
+	private static void fromHalf(ShortBuffer host, float[] data) {
+		
+		for (int i = 0; i < data.length; i++) {
+			data[i] = Half.toFloat(host.get(i));
+		}
+		
+	}
+	
+	@Override
+	public void copy(Matrix a, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_event event = profiledEvent();
+		clEnqueueCopyBuffer(dispatch.queue, mem(a), mem(out), 0, 0, bytes(a), 0, null, event);
+		record(event, "copy", out);
+		
+	}
+	
+	@Override
+	public void copyColumns(Matrix a, int column, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		// out is a rectangle of a, one row of it at a time
+		long element = a.getPrecision().getBytes();
+		long[] sourceOrigin = { element * column, 0, 0 };
+		long[] destinationOrigin = { 0, 0, 0 };
+		long[] region = { element * out.getColumns(), out.getRows(), 1 };
+		
+		cl_event event = profiledEvent();
+		clEnqueueCopyBufferRect(dispatch.queue, mem(a), mem(out), sourceOrigin, destinationOrigin, region, element * a.getColumns(), 0, element * out.getColumns(), 0, 0, null, event);
+		record(event, "copyColumns", out);
+		
+	}
+	
+	@Override
+	public void gradientDescent(Matrix w, Matrix master, Matrix djdw, float gradientScale, float learningRate) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsgd", w.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(w) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(master) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(djdw) }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_float, Pointer.to(new float[] { gradientScale }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_float, Pointer.to(new float[] { learningRate }));
+		
+		dispatch.global[0] = w.getSize();
+		
+		enqueueKernel(dispatch, kernel, 1, null, w);
+		
+	}
+	
+	@Override
+	public void momentum(Matrix w, Matrix master, Matrix djdw, Matrix velocity, float gradientScale, float learningRate, float momentum, boolean nesterov) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matmomentum", w.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(w) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(master) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(djdw) }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(velocity) }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_float, Pointer.to(new float[] { gradientScale }));
+		clSetKernelArg(kernel, 5, Sizeof.cl_float, Pointer.to(new float[] { learningRate }));
+		clSetKernelArg(kernel, 6, Sizeof.cl_float, Pointer.to(new float[] { momentum }));
+		clSetKernelArg(kernel, 7, Sizeof.cl_int, Pointer.to(new int[] { nesterov ? 1 : 0 }));
+		
+		dispatch.global[0] = w.getSize();
+		
+		enqueueKernel(dispatch, kernel, 1, null, w);
+		
+	}
+	
+	@Override
+	public void rmsProp(Matrix w, Matrix master, Matrix djdw, Matrix meanSquare, float gradientScale, float learningRate, float decay, float epsilon) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matrmsprop", w.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(w) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(master) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(djdw) }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(meanSquare) }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_float, Pointer.to(new float[] { gradientScale }));
+		clSetKernelArg(kernel, 5, Sizeof.cl_float, Pointer.to(new float[] { learningRate }));
+		clSetKernelArg(kernel, 6, Sizeof.cl_float, Pointer.to(new float[] { decay }));
+		clSetKernelArg(kernel, 7, Sizeof.cl_float, Pointer.to(new float[] { epsilon }));
+		
+		dispatch.global[0] = w.getSize();
+		
+		enqueueKernel(dispatch, kernel, 1, null, w);
+		
+	}
+	
+	@Override
+	public void adam(Matrix w, Matrix master, Matrix djdw, Matrix m, Matrix v, float gradientScale, float learningRate, float beta1, float beta2, float epsilon, int step) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matadam", w.getPrecision());
+		
+		float correction1 = (float) (1 / (1 - Math.pow(beta1, step)));
+		float correction2 = (float) (1 / (1 - Math.pow(beta2, step)));
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(w) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(master) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(djdw) }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(m) }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(v) }));
+		clSetKernelArg(kernel, 5, Sizeof.cl_float, Pointer.to(new float[] { gradientScale }));
+		clSetKernelArg(kernel, 6, Sizeof.cl_float, Pointer.to(new float[] { learningRate }));
+		clSetKernelArg(kernel, 7, Sizeof.cl_float, Pointer.to(new float[] { beta1 }));
+		clSetKernelArg(kernel, 8, Sizeof.cl_float, Pointer.to(new float[] { beta2 }));
+		clSetKernelArg(kernel, 9, Sizeof.cl_float, Pointer.to(new float[] { epsilon }));
+		clSetKernelArg(kernel, 10, Sizeof.cl_float, Pointer.to(new float[] { correction1 }));
+		clSetKernelArg(kernel, 11, Sizeof.cl_float, Pointer.to(new float[] { correction2 }));
+		
+		dispatch.global[0] = w.getSize();
+		
+		enqueueKernel(dispatch, kernel, 1, null, w);
+		
+	}
+	
+	@Override
+	public void gatherColumns(Matrix a, Matrix indices, int offset, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matgather", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[] { a.getColumns() }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(indices) }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_int, Pointer.to(new int[] { offset }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		clSetKernelArg(kernel, 5, Sizeof.cl_int, Pointer.to(new int[] { out.getColumns() }));
+		
+		dispatch.global[0] = out.getSize();
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void dot(Matrix a, Matrix b, Matrix out, boolean aT, boolean bT) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		int pdim = aT ? a.getRows() : a.getColumns();
+		
+		if (!aT && !bT) {
+			enqueueDot(dispatch.kernel(NAIVE_DOT ? "matdotnaive" : "matdot", a.getPrecision()), !NAIVE_DOT, a, b, out, pdim);
+		} else if (aT) {
+			enqueueDot(dispatch.kernel(NAIVE_DOT ? "matdotatnaive" : "matdotat", a.getPrecision()), !NAIVE_DOT, a, b, out, pdim);
+		} else {
+			enqueueDot(dispatch.kernel(NAIVE_DOT ? "matdotbtnaive" : "matdotbt", a.getPrecision()), !NAIVE_DOT, a, b, out, pdim);
+		}
+		
+	}
+	
+	@Override
+	public void dotSigmoid(Matrix a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		if (NAIVE_DOT) {
+			
+			dot(a, b, out, false, false);
+			sigmoid(out, out);
+			
+		} else {
+			
+			enqueueDot(dispatch.kernel("matdotsig", a.getPrecision()), true, a, b, out, a.getColumns());
+			
+		}
+		
+	}
+	
+	@Override
+	public void dotSigmoid(QuantizedMatrix a, Matrix b, float bScale, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matdotsigq", b.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_int, Pointer.to(new int[] { out.getRows() }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[] { out.getColumns() }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[] { a.getColumns() }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { (cl_mem) a.buffer }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a.scales) }));
+		clSetKernelArg(kernel, 5, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 6, Sizeof.cl_float, Pointer.to(new float[] { bScale }));
+		clSetKernelArg(kernel, 7, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = out.getColumns();
+		dispatch.global[1] = out.getRows();
+		
+		enqueueKernel(dispatch, kernel, 2, null, out);
+		
+	}
+	
+	@Override
+	public void dotATSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matdotatsigprime", a.getPrecision());
+		
+		clSetKernelArg(kernel, 6, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(x) }));
+		
+		enqueueDot(kernel, true, a, b, out, a.getRows());
+		
+	}
+	
+	/**
+	 * Launches one of the dot kernels, which all take (mdim, ndim, pdim, A, B, C) where C is
+	 * mdim*ndim and pdim is the length of the shared dimension. Tiled kernels need whole tiles of
+	 * work items, the others one work item for each element of C
+	 */
+	private void enqueueDot(cl_kernel kernel, boolean tiled, Matrix a, Matrix b, Matrix out, int pdim) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		int mdim = out.getRows();
+		int ndim = out.getColumns();
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_int, Pointer.to(new int[] { mdim }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[] { ndim }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[] { pdim }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 5, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		if (!tiled) {
+			
+			dispatch.global[0] = ndim;
+			dispatch.global[1] = mdim;
+			
+			enqueueKernel(dispatch, kernel, 2, null, out);
+			
+		} else {
+			
+			// one work group per TILE_SIZE*TILE_SIZE block of out, each work item computing
+			// WORK_PER_THREAD rows of it
+			dispatch.global[0] = roundUp(ndim, TILE_SIZE);
+			dispatch.global[1] = roundUp(mdim, TILE_SIZE) / WORK_PER_THREAD;
+			dispatch.local[0] = TILE_SIZE;
+			dispatch.local[1] = TILE_SIZE / WORK_PER_THREAD;
+			
+			enqueueKernel(dispatch, kernel, 2, dispatch.local, out);
+			
+		}
+		
+	}
+	
+	private static long roundUp(int value, int multiple) {
+		
+		return (value + multiple - 1) / multiple * multiple;
+		
+	}
+	
+	@Override
+	public void multiply(float a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("fltmul", b.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_float, Pointer.to(new float[] { a }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = b.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void multiply(Matrix a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matmul", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void pow(Matrix a, float b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matpow", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_float, Pointer.to(new float[] { b }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void divide(Matrix a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matmatdiv", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = b.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void divide(float a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("fltmatdiv", b.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_float, Pointer.to(new float[] { a }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = b.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void divide(Matrix a, float b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matfltdiv", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_float, Pointer.to(new float[] { b }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void add(Matrix a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matadd", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void sub(Matrix a, Matrix b, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsub", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public float sum(Matrix a) {
+		
+		return reduce(setSumArgs(a, false), a);
+		
+	}
+	
+	@Override
+	public CompletableFuture<Float> sumAsync(Matrix a) {
+		
+		return reduceAsync(setSumArgs(a, false), a);
+		
+	}
+	
+	@Override
+	public float sumOfSquares(Matrix a) {
+		
+		return reduce(setSumArgs(a, true), a);
+		
+	}
+	
+	@Override
+	public CompletableFuture<Float> sumOfSquaresAsync(Matrix a) {
+		
+		return reduceAsync(setSumArgs(a, true), a);
+		
+	}
+	
+	@Override
+	public float squaredError(Matrix a, Matrix b) {
+		
+		return reduce(setSqDiffArgs(a, b), a);
+		
+	}
+	
+	@Override
+	public CompletableFuture<Float> squaredErrorAsync(Matrix a, Matrix b) {
+		
+		return reduceAsync(setSqDiffArgs(a, b), a);
+		
+	}
+	
+	private cl_kernel setSumArgs(Matrix a, boolean square) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsum", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[] { a.getSize() }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[] { square ? 1 : 0 }));
+		
+		return kernel;
+		
+	}
+	
+	private cl_kernel setSqDiffArgs(Matrix a, Matrix b) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsqdiff", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[] { a.getSize() }));
+		
+		return kernel;
+		
+	}
+	
+	/**
+	 * Launches a reduction kernel with its first three arguments set, the remaining two being the
+	 * buffer of partial results and the local scratch memory
+	 * 
+	 * @return the amount of partial results that will be written
+	 */
+	private int enqueueReduction(cl_kernel kernel, Matrix a) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		int groups = (int) Math.min(REDUCTION_GROUPS, roundUp(a.getSize(), reductionLocalSize) / reductionLocalSize);
+		
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { dispatch.reductionPartial }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_float * reductionLocalSize, null);
+		
+		dispatch.global[0] = groups * reductionLocalSize;
+		dispatch.local[0] = reductionLocalSize;
+		
+		enqueueKernel(dispatch, kernel, 1, dispatch.local, a);
+		
+		return groups;
+		
+	}
+	
+	private float reduce(cl_kernel kernel, Matrix a) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		int groups = enqueueReduction(kernel, a);
+		cl_event event = profiledEvent();
+		clEnqueueReadBuffer(dispatch.queue, dispatch.reductionPartial, CL_TRUE, 0, Sizeof.cl_float * groups, Pointer.to(dispatch.reductionPartialData), 0, null, event);
+		record(event, "readPartials", a);
+		
+		double sum = 0;
+		for (int i = 0; i < groups; i++) {
+			sum += dispatch.reductionPartialData[i];
+		}
+		return (float) sum;
+		
+	}
+	
+	/**
+	 * Like reduce, but the partial results are read back without waiting for them. Reductions queued
+	 * later on the same device reuse its buffer of partial results, which is safe as the queue runs in
+	 * order
+	 */
+	private CompletableFuture<Float> reduceAsync(cl_kernel kernel, Matrix a) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		int groups = enqueueReduction(kernel, a);
+		FloatBuffer host = directBuffer(groups);
+		
+		cl_event event = new cl_event();
+		clEnqueueReadBuffer(dispatch.queue, dispatch.reductionPartial, CL_FALSE, 0, Sizeof.cl_float * groups, Pointer.to(host), 0, null, event);
+		profile(event, "readPartials", a);
+		
+		return whenComplete(event, () -> {
+			
+			double sum = 0;
+			for (int i = 0; i < groups; i++) {
+				sum += host.get(i);
+			}
+			return (float) sum;
+			
+		});
+		
+	}
+	
+	@Override
+	public void columnMax(Matrix a, float[] max, int[] argmax) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matcolmax", a.getPrecision());
+		
+		int columns = a.getColumns();
+		
+		dispatch.reserveColumnMax(columns);
+		cl_mem maxMem = dispatch.columnMax;
+		cl_mem argmaxMem = dispatch.columnArgmax;
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[] { a.getRows() }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[] { columns }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { maxMem }));
+		clSetKernelArg(kernel, 4, Sizeof.cl_mem, Pointer.to(new cl_mem[] { argmaxMem }));
+		
+		dispatch.global[0] = columns;
+		
+		enqueueKernel(dispatch, kernel, 1, null, a);
+		cl_event event = profiledEvent();
+		clEnqueueReadBuffer(dispatch.queue, maxMem, CL_TRUE, 0, Sizeof.cl_float * columns, Pointer.to(max), 0, null, event);
+		record(event, "readColumnMax", a);
+		event = profiledEvent();
+		clEnqueueReadBuffer(dispatch.queue, argmaxMem, CL_TRUE, 0, Sizeof.cl_int * columns, Pointer.to(argmax), 0, null, event);
+		record(event, "readColumnMax", a);
+		
+	}
+	
+	@Override
+	public void sigmoid(Matrix a, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsig", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void sigmoidPrime(Matrix a, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsigprime", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	@Override
+	public void subSigmoidPrime(Matrix a, Matrix b, Matrix x, Matrix out) {
+		
+		Dispatch dispatch = dispatches.get();
+		
+		cl_kernel kernel = dispatch.kernel("matsubsigprime", a.getPrecision());
+		
+		clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(a) }));
+		clSetKernelArg(kernel, 1, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(b) }));
+		clSetKernelArg(kernel, 2, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(x) }));
+		clSetKernelArg(kernel, 3, Sizeof.cl_mem, Pointer.to(new cl_mem[] { mem(out) }));
+		
+		dispatch.global[0] = a.getSize();
+		dispatch.local[0] = 1;
+		
+		enqueueKernel(dispatch, kernel, 1, null, out);
+		
+	}
+	
+	
+	/**
+	 * The state used to queue an operation, which each thread has its own of so that threads never
+	 * race on it. Kernel arguments are set before a kernel is queued, so every thread has its own
+	 * instance of each kernel. It also has its own queue on each device, created the first time the
+	 * thread uses that device, so that threads do not wait on each other's work. Once the thread has
+	 * died everything it created is released, the next time a thread starts using the backend or
+	 * finish is called
+	 */
+	private class Dispatch {
+		
+		private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+		
+		private final Map<Precision, Map<String, cl_kernel>> kernels = new EnumMap<>(Precision.class);
+		private final Map<cl_kernel, String> names = new IdentityHashMap<>();
+		
+		private final cl_command_queue[] deviceQueues = new cl_command_queue[devices.length];
+		private final cl_mem[] deviceReductionPartials = new cl_mem[devices.length];
+		
+		private int index;
+		private cl_command_queue queue;
+		private cl_mem reductionPartial;
+		private final float[] reductionPartialData = new float[REDUCTION_GROUPS];
+		
+		/**
+		 * Where columnMax writes its results, which is shared by every device as the reads of it
+		 * block
+		 */
+		private cl_mem columnMax;
+		private cl_mem columnArgmax;
+		private int columnMaxCapacity;
+		
+		private final long[] global = new long[2];
+		private final long[] local = new long[2];
+		
+		private Dispatch() {
+			
+			setDevice(0);
+			
+		}
+		
+		/**
+		 * @return the kernel with the given name for matrices of the given precision, which is
+		 *         created the first time it is used
+		 */
+		private cl_kernel kernel(String name, Precision precision) {
+			
+			return kernels.computeIfAbsent(precision, p -> new HashMap<>()).computeIfAbsent(name, n -> {
+				
+				cl_kernel kernel = programs.get(precision).createKernel(n);
+				names.put(kernel, n);
+				return kernel;
+				
+			});
+			
+		}
+		
+		/**
+		 * Makes sure the buffers columnMax writes to have room for the given amount of columns,
+		 * at least doubling them if they don't
+		 */
+		private void reserveColumnMax(int columns) {
+			
+			if (columns <= columnMaxCapacity) {
+				return;
+			}
+			
+			if (columnMax != null) {
+				
+				clReleaseMemObject(columnMax);
+				clReleaseMemObject(columnArgmax);
+				
+			}
+			
+			columnMaxCapacity = Math.max(columns, 2 * columnMaxCapacity);
+			columnMax = clCreateBuffer(context, CL_MEM_WRITE_ONLY, Sizeof.cl_float * columnMaxCapacity, null, null);
+			columnArgmax = clCreateBuffer(context, CL_MEM_WRITE_ONLY, Sizeof.cl_int * columnMaxCapacity, null, null);
+			
+		}
+		
+		/**
+		 * Waits for the work the thread queued and then releases everything it created
+		 */
+		private void release() {
+			
+			for (int i = 0; i < deviceQueues.length; i++) {
+				if (deviceQueues[i] != null) {
+					
+					clFinish(deviceQueues[i]);
+					queues.remove(deviceQueues[i]);
+					clReleaseCommandQueue(deviceQueues[i]);
+					clReleaseMemObject(deviceReductionPartials[i]);
+					
+				}
+			}
+			
+			for (Map<String, cl_kernel> precisionKernels : kernels.values()) {
+				for (cl_kernel kernel : precisionKernels.values()) {
+					clReleaseKernel(kernel);
+				}
+			}
+			
+			if (columnMax != null) {
+				
+				clReleaseMemObject(columnMax);
+				clReleaseMemObject(columnArgmax);
+				
+			}
+			
+		}
+		
+		private void setDevice(int index) {
+			
+			if (deviceQueues[index] == null) {
+				
+				deviceQueues[index] = clCreateCommandQueue(context, devices[index], Profiler.isEnabled() ? CL_QUEUE_PROFILING_ENABLE : 0, null);
+				deviceReductionPartials[index] = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_float * REDUCTION_GROUPS, null, null);
+				queues.add(deviceQueues[index]);
+				
+			}
+			
+			this.index = index;
+			queue = deviceQueues[index];
+			reductionPartial = deviceReductionPartials[index];
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,308 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 
+ * Records how long every command the OpenCL backend queues takes on its device, when
+ * "matrix.profile" is set to true. Each command is recorded with the name of its kernel or
+ * transfer, the shape of the matrix it writes, the device it ran on and the phase and layer that
+ * the thread which queued it had set, along with the times the device says it was queued, started
+ * and ended.
+ * 
+ * The records can be summarised with a histogram of the time each operation took, or written as a
+ * trace in the JSON format Chrome's about:tracing and Perfetto open, which TrainingScheme does at
+ * the end of every run it profiles. Every record is kept until reset is called, so a long run should
+ * only be profiled for a few iterations. The java backend runs every operation as it is called, so
+ * there is nothing for it to record
+ * 
+ * @author Kacper
+ *
+ */
+public final class Profiler {
+	
+	public static final String PROPERTY = "matrix.profile";
+	
+	/**
+	 * Names the file TrainingScheme writes the trace of a profiled run to
+	 */
+	public static final String TRACE_PROPERTY = "matrix.profile.trace";
+	
+	private static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+	
+	/**
+	 * The histograms have a bucket for each power of two microseconds up to this
+	 */
+	private static final int BUCKETS = 24;
+	
+	private static final ThreadLocal<String> phases = ThreadLocal.withInitial(() -> "");
+	private static final ThreadLocal<int[]> layers = ThreadLocal.withInitial(() -> new int[] { -1 });
+	
+	private static final Queue<Record> records = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pending = new AtomicInteger();
+	
+	private Profiler() {}
+	
+	public static boolean isEnabled() {
+		
+		return ENABLED;
+		
+	}
+	
+	/**
+	 * 
+	 * Sets the phase that commands queued from the calling thread are recorded in, such as
+	 * "forward" or "update"
+	 * 
+	 * @param phase
+	 *            - the name of the phase
+	 */
+	public static void setPhase(String phase) {
+		
+		if (ENABLED) {
+			phases.set(phase);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Sets the layer of the network that commands queued from the calling thread are recorded in
+	 * 
+	 * @param layer
+	 *            - the index of the weights of the layer, or -1 for none
+	 */
+	public static void setLayer(int layer) {
+		
+		if (ENABLED) {
+			layers.get()[0] = layer;
+		}
+		
+	}
+	
+	/**
+	 * Starts a record of a command that is being queued from the calling thread, which is added
+	 * once its times are known
+	 */
+	static Record begin(String operation, Matrix shape, int device) {
+		
+		pending.incrementAndGet();
+		return new Record(operation, shape == null ? "" : shape.getRows() + "x" + shape.getColumns(), device, phases.get(), layers.get()[0], Thread.currentThread());
+		
+	}
+	
+	/**
+	 * 
+	 * Waits for every command queued so far to finish and be recorded, which should be done before
+	 * the records are summarised
+	 * 
+	 */
+	public static void finish() {
+		
+		Matrix.finish();
+		
+		// the times are read in callbacks, which may still be running once the queues are empty
+		while (pending.get() > 0) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Forgets everything recorded so far
+	 *
+	 */
+	public static void reset() {
+		
+		records.clear();
+		
+	}
+	
+	/**
+	 * 
+	 * Prints, as CSV, how many times each operation ran, how long it took in total and on average,
+	 * the median and 99th percentile and the longest time, how long it waited on average between
+	 * being queued and starting, and a histogram of the times. The histogram is a list of
+	 * "microseconds:count" separated by spaces, where each count is of the times of at most those
+	 * microseconds and more than half of them
+	 * 
+	 * @param out
+	 *            - where to print
+	 */
+	public static void printSummary(PrintStream out) {
+		
+		Map<String, List<Record>> operations = new TreeMap<>();
+		for (Record record : records) {
+			operations.computeIfAbsent(record.operation, operation -> new ArrayList<>()).add(record);
+		}
+		
+		out.println("operation,calls,totalMillis,meanMicros,p50Micros,p99Micros,maxMicros,meanWaitMicros,histogram");
+		for (Map.Entry<String, List<Record>> operation : operations.entrySet()) {
+			
+			List<Record> calls = operation.getValue();
+			long[] durations = new long[calls.size()];
+			long total = 0;
+			long wait = 0;
+			int[] histogram = new int[BUCKETS];
+			for (int i = 0; i < durations.length; i++) {
+				
+				Record record = calls.get(i);
+				durations[i] = record.end - record.start;
+				total += durations[i];
+				wait += record.start - record.queued;
+				
+				int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, (durations[i] - 1) / 1000));
+				histogram[Math.min(BUCKETS - 1, bucket)]++;
+				
+			}
+			Arrays.sort(durations);
+			
+			StringBuilder buckets = new StringBuilder();
+			for (int i = 0; i < BUCKETS; i++) {
+				if (histogram[i] > 0) {
+					buckets.append(buckets.length() == 0 ? "" : " ").append(1L << i).append(':').append(histogram[i]);
+				}
+			}
+			
+			out.println(operation.getKey() + "," + durations.length + "," + String.format("%.3f,%.1f,%.1f,%.1f,%.1f,%.1f", total / 1e6, total / 1e3 / durations.length, durations[durations.length / 2] / 1e3, durations[(int) Math.min(durations.length - 1, Math.ceil(durations.length * 0.99) - 1)] / 1e3, durations[durations.length - 1] / 1e3, wait / 1e3 / durations.length) + "," + buckets);
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Writes every record as a complete event of a Chrome trace. Each device is a process and each
+	 * thread that queued commands a thread of it, and times are in microseconds from the first
+	 * command queued on the device, as devices don't share a clock
+	 * 
+	 * @param file
+	 *            - where the trace should be written
+	 * @throws IOException
+	 */
+	public static void writeTrace(File file) throws IOException {
+		
+		List<Record> sorted = new ArrayList<>(records);
+		Collections.sort(sorted, (a, b) -> Long.compare(a.queued, b.queued));
+		
+		Map<Integer, Long> origins = new TreeMap<>();
+		Map<Long, String> threads = new TreeMap<>();
+		for (Record record : sorted) {
+			
+			origins.putIfAbsent(record.device, record.queued);
+			threads.putIfAbsent(record.threadId, record.threadName);
+			
+		}
+		
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			
+			out.println("{\"traceEvents\":[");
+			
+			boolean first = true;
+			for (int device : origins.keySet()) {
+				
+				out.print((first ? "" : ",\n") + "{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + device + ",\"args\":{\"name\":\"device " + device + "\"}}");
+				first = false;
+				for (Map.Entry<Long, String> thread : threads.entrySet()) {
+					out.print(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + device + ",\"tid\":" + thread.getKey() + ",\"args\":{\"name\":\"" + escape(thread.getValue()) + "\"}}");
+				}
+				
+			}
+			
+			for (Record record : sorted) {
+				
+				long origin = origins.get(record.device);
+				out.print(",\n{\"name\":\"" + escape(record.operation) + "\",\"cat\":\"" + escape(record.phase) + "\",\"ph\":\"X\",\"pid\":" + record.device + ",\"tid\":" + record.threadId);
+				out.print(String.format(Locale.ROOT, ",\"ts\":%.3f,\"dur\":%.3f", (record.start - origin) / 1e3, (record.end - record.start) / 1e3));
+				out.print(",\"args\":{\"shape\":\"" + record.shape + "\",\"phase\":\"" + escape(record.phase) + "\",\"layer\":" + record.layer + String.format(Locale.ROOT, ",\"waitMicros\":%.3f}}", (record.start - record.queued) / 1e3));
+				
+			}
+			
+			out.println();
+			out.println("]}");
+			
+		}
+		
+	}
+	
+	private static String escape(String value) {
+		
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+		
+	}
+	
+	/**
+	 * 
+	 * One command, whose times are in nanoseconds on the clock of its device
+	 *
+	 */
+	static final class Record {
+		
+		private final String operation;
+		private final String shape;
+		private final int device;
+		private final String phase;
+		private final int layer;
+		private final long threadId;
+		private final String threadName;
+		
+		private long queued;
+		private long start;
+		private long end;
+		
+		private Record(String operation, String shape, int device, String phase, int layer, Thread thread) {
+			
+			this.operation = operation;
+			this.shape = shape;
+			this.device = device;
+			this.phase = phase;
+			this.layer = layer;
+			this.threadId = thread.getId();
+			this.threadName = thread.getName();
+			
+		}
+		
+		/**
+		 * Adds the record with the times of its command
+		 */
+		void end(long queued, long start, long end) {
+			
+			this.queued = queued;
+			this.start = start;
+			this.end = end;
+			records.add(this);
+			pending.decrementAndGet();
+			
+		}
+		
+		/**
+		 * Gives up on the record, as its command failed
+		 */
+		void discard() {
+			
+			pending.decrementAndGet();
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,170 @@
+package core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+/**
+ * 
+ * A matrix of weights quantized to signed bytes, with a scale for each row. Each row is scaled so
+ * that its largest magnitude becomes MAX_VALUE, and the value of an element is its byte times the
+ * scale of its row. It takes a quarter of the memory of a matrix in single precision, and can only
+ * be used as the left hand side of Matrix.dotSigmoid.
+ * 
+ * The bytes are kept on the host as well as by the backend, so that the matrix can be serialized
+ * 
+ * @see Matrix#dotSigmoid(QuantizedMatrix, Matrix, float, Matrix)
+ * 
+ * @author Kacper
+ *
+ */
+public final class QuantizedMatrix implements Serializable, AutoCloseable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The largest magnitude a value is quantized to, which is the same for positive and negative
+	 * values so that zero is exact
+	 */
+	public static final int MAX_VALUE = 127;
+	
+	private final int rows;
+	private final int columns;
+	
+	private final byte[] values;
+	private final float[] rowScales;
+	
+	transient Object buffer;
+	transient Matrix scales;
+	
+	/**
+	 * 
+	 * Quantizes a matrix, reading it back from the backend
+	 * 
+	 * @param a
+	 *            - the matrix to quantize
+	 */
+	public QuantizedMatrix(Matrix a) {
+		
+		rows = a.getRows();
+		columns = a.getColumns();
+		values = new byte[rows * columns];
+		rowScales = new float[rows];
+		
+		float[] data = a.getData();
+		for (int row = 0; row < rows; row++) {
+			
+			float max = 0;
+			for (int col = 0; col < columns; col++) {
+				max = Math.max(max, Math.abs(data[row * columns + col]));
+			}
+			
+			// a row of zeros stays zero whatever its scale
+			float scale = max == 0 ? 1 : max / MAX_VALUE;
+			rowScales[row] = scale;
+			for (int col = 0; col < columns; col++) {
+				values[row * columns + col] = quantize(data[row * columns + col], scale);
+			}
+			
+		}
+		
+		upload();
+		
+	}
+	
+	private void upload() {
+		
+		buffer = Matrix.getBackend().allocateQuantized(values);
+		scales = new Matrix(rows, 1, rowScales, Matrix.Precision.SINGLE);
+		
+	}
+	
+	/**
+	 * 
+	 * @return the nearest multiple of scale to value as a byte, clamped to MAX_VALUE
+	 */
+	public static byte quantize(float value, float scale) {
+		
+		return (byte) Math.max(-MAX_VALUE, Math.min(MAX_VALUE, Math.rint(value / scale)));
+		
+	}
+	
+	public int getRows() {
+		
+		return rows;
+		
+	}
+	
+	public int getColumns() {
+		
+		return columns;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the value each byte of a row is multiplied by
+	 */
+	public float[] getScales() {
+		
+		return rowScales.clone();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the values the bytes stand for, which is what the matrix was quantized from to within
+	 *         half the scale of each row
+	 */
+	public float[] getData() {
+		
+		float[] data = new float[values.length];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = values[i] * rowScales[i / columns];
+		}
+		return data;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many bytes the backend holds for the matrix, including its scales
+	 */
+	public long getBytes() {
+		
+		return values.length + 4L * rowScales.length;
+		
+	}
+	
+	/**
+	 * 
+	 * Frees the storage held by the backend, after which the matrix must not be used
+	 */
+	public void release() {
+		
+		if (buffer != null) {
+			
+			Matrix.getBackend().release(buffer);
+			scales.release();
+			buffer = null;
+			scales = null;
+			
+		}
+		
+	}
+	
+	@Override
+	public void close() {
+		
+		release();
+		
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		in.defaultReadObject();
+		upload();
+		
+	}
+	
+}
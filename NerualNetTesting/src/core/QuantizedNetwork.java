@@ -0,0 +1,234 @@
+package core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 
+ * A trained NeuralNetwork quantized for inference. The weights of each layer are stored as signed
+ * bytes with a scale for each row, and the input of each layer is quantized to bytes as well while
+ * it is read, so every dot product is taken with integers.
+ * 
+ * The step each layer's input is quantized to is calibrated by forwarding a sample of the training
+ * data through the original network, and is the largest magnitude seen divided by
+ * QuantizedMatrix.MAX_VALUE. Inputs beyond what the sample covered are clamped
+ * 
+ * @see QuantizedMatrix
+ * 
+ * @author Kacper
+ *
+ */
+public class QuantizedNetwork implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int inputLayerSize;
+	private final int outputLayerSize;
+	
+	private final QuantizedMatrix[] w;
+	private final float[] inputScales;
+	
+	private transient ThreadLocal<Map<Integer, Matrix[]>> workspaces;
+	
+	private QuantizedNetwork(int inputLayerSize, int outputLayerSize, QuantizedMatrix[] w, float[] inputScales) {
+		
+		this.inputLayerSize = inputLayerSize;
+		this.outputLayerSize = outputLayerSize;
+		this.w = w;
+		this.inputScales = inputScales;
+		
+		workspaces = ThreadLocal.withInitial(HashMap::new);
+		
+	}
+	
+	/**
+	 * 
+	 * Quantizes a network, which is left as it is
+	 * 
+	 * @param network
+	 *            - the trained network
+	 * @param calibration
+	 *            - samples of the input data, a column each, which the range of the input of each
+	 *            layer is found from
+	 * @return the quantized network
+	 */
+	public static QuantizedNetwork quantize(NeuralNetwork network, Matrix calibration) {
+		
+		assert calibration.getRows() == network.getInputLayerSize();
+		
+		Matrix[] weights = network.getW();
+		QuantizedMatrix[] w = new QuantizedMatrix[weights.length];
+		float[] inputScales = new float[weights.length];
+		
+		Matrix x = calibration;
+		for (int i = 0; i < weights.length; i++) {
+			
+			float max = 0;
+			for (float value : x.getData()) {
+				max = Math.max(max, Math.abs(value));
+			}
+			inputScales[i] = max == 0 ? 1 : max / QuantizedMatrix.MAX_VALUE;
+			w[i] = new QuantizedMatrix(weights[i]);
+			
+			Matrix next = Matrix.dotSigmoid(weights[i], x, new Matrix(weights[i].getRows(), x.getColumns()));
+			if (x != calibration) {
+				x.release();
+			}
+			x = next;
+			
+		}
+		x.release();
+		
+		return new QuantizedNetwork(network.getInputLayerSize(), network.getOutputLayerSize(), w, inputScales);
+		
+	}
+	
+	/**
+	 * 
+	 * Forwards the data x0 through the network. As with NeuralNetwork.forward the returned matrix is
+	 * overwritten by the next call with as many columns from the same thread
+	 * 
+	 * @param x0
+	 *            - input data
+	 * @return output data
+	 */
+	public Matrix forward(Matrix x0) {
+		
+		assert x0.getRows() == inputLayerSize;
+		
+		Matrix[] x = workspaces.get().computeIfAbsent(x0.getColumns(), this::createWorkspace);
+		
+		Matrix input = x0;
+		for (int i = 0; i < w.length; i++) {
+			
+			Matrix.dotSigmoid(w[i], input, inputScales[i], x[i]);
+			input = x[i];
+			
+		}
+		
+		return input;
+		
+	}
+	
+	private Matrix[] createWorkspace(int columns) {
+		
+		Matrix[] x = new Matrix[w.length];
+		for (int i = 0; i < w.length; i++) {
+			x[i] = new Matrix(w[i].getRows(), columns);
+		}
+		return x;
+		
+	}
+	
+	/**
+	 * 
+	 * @return half the mean of the squares of the difference between the output and y, as in
+	 *         NeuralNetwork.getCost
+	 */
+	public float getCost(Matrix x0, Matrix y) {
+		
+		assert y.getRows() == outputLayerSize;
+		
+		return 0.5f * Matrix.squaredError(y, forward(x0)) / x0.getColumns();
+		
+	}
+	
+	public int getInputLayerSize() {
+		
+		return inputLayerSize;
+		
+	}
+	
+	public int getOutputLayerSize() {
+		
+		return outputLayerSize;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many bytes the weights and their scales take
+	 */
+	public long getWeightBytes() {
+		
+		long bytes = 0;
+		for (QuantizedMatrix weights : w) {
+			bytes += weights.getBytes();
+		}
+		return bytes;
+		
+	}
+	
+	/**
+	 * 
+	 * Frees the weights and the calling thread's activations, after which the network must not be
+	 * used
+	 */
+	public void release() {
+		
+		for (QuantizedMatrix weights : w) {
+			weights.release();
+		}
+		for (Matrix[] x : workspaces.get().values()) {
+			for (Matrix activation : x) {
+				activation.release();
+			}
+		}
+		workspaces.get().clear();
+		
+	}
+	
+	/**
+	 * 
+	 * Writes the network to a file
+	 * 
+	 * @param file
+	 *            - where the network should be written
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		try (ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+			oos.writeObject(this);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * Reads a network written by save
+	 * 
+	 * @param file
+	 *            - the file the network was written to
+	 * @return the network
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static QuantizedNetwork load(File file) throws IOException, ClassNotFoundException {
+		
+		try (ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new FileInputStream(file)))) {
+			return (QuantizedNetwork) ois.readObject();
+		}
+		
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		in.defaultReadObject();
+		workspaces = ThreadLocal.withInitial(HashMap::new);
+		
+	}
+	
+}
@@ -4,15 +4,16 @@ package core;
 import static java.lang.Math.ceil;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 
+import trainers.AsyncMetricsSink;
 import trainers.BatchTraining;
 import trainers.GradientDescent;
+import trainers.OptimisationMethod;
+import trainers.StepMetrics;
 import trainers.StochasticTraining;
 import trainers.TrainingScheme;
 
@@ -25,9 +26,6 @@ import trainers.TrainingScheme;
  */
 public class Train {
 	
-	private static final int SAMPLE_WIDTH = 28;
-	private static final int SAMPLE_HEIGHT = 28;
-	
 	private static final String TRAIN_IMAGES = "train-images.idx3-ubyte";
 	private static final String TRAIN_LABELS = "train-labels.idx1-ubyte";
 	private static final int TRAIN_SAMPLES = 60000;
@@ -41,18 +39,33 @@ public class Train {
 	
 	private static boolean isStochastic;
 	private static boolean useTesting;
+	private static int testingIterations;
+	private static double testingSeconds;
+	private static int testingSamples;
 	private static double learningRate;
 	private static double sampleProportion;
-	private static boolean saveEachIteration;
+	private static int miniBatchSize;
+	private static boolean saveCheckpoints;
+	private static int checkpointIterations;
+	private static double checkpointSeconds;
+	private static int checkpointsKept;
+	private static Checkpointer checkpointer;
 	private static boolean willLoadLast;
 	
 	public static void main(String[] args) {
 		
 		isStochastic = false;
 		useTesting = false;
+		testingIterations = 1;
+		testingSeconds = 0;
+		testingSamples = 0;
 		learningRate = 0.05;
 		sampleProportion = .01;
-		saveEachIteration = false;
+		miniBatchSize = StochasticTraining.DEFAULT_MINIBATCH_SIZE;
+		saveCheckpoints = false;
+		checkpointIterations = 1;
+		checkpointSeconds = 0;
+		checkpointsKept = 0;
 		willLoadLast = false;
 		
 		for (int i = 0; i < args.length; i++) {
@@ -69,6 +82,25 @@ public class Train {
 				useTesting = true;
 				break;
 			
+			case "-Tn":
+				
+				useTesting = true;
+				testingIterations = Integer.valueOf(args[++i]);
+				break;
+			
+			case "-Tt":
+				
+				useTesting = true;
+				testingIterations = 0;
+				testingSeconds = Double.valueOf(args[++i]);
+				break;
+			
+			case "-Ts":
+				
+				useTesting = true;
+				testingSamples = Integer.valueOf(args[++i]);
+				break;
+			
 			case "-r":
 				learningRate = Double.valueOf(args[++i]);
 				break;
@@ -78,9 +110,33 @@ public class Train {
 				sampleProportion = Double.valueOf(args[++i]);
 				break;
 			
+			case "-b":
+				
+				miniBatchSize = Integer.valueOf(args[++i]);
+				break;
+			
 			case "-S":
 				
-				saveEachIteration = true;
+				saveCheckpoints = true;
+				break;
+			
+			case "-Sn":
+				
+				saveCheckpoints = true;
+				checkpointIterations = Integer.valueOf(args[++i]);
+				break;
+			
+			case "-St":
+				
+				saveCheckpoints = true;
+				checkpointIterations = 0;
+				checkpointSeconds = Double.valueOf(args[++i]);
+				break;
+			
+			case "-Sk":
+				
+				saveCheckpoints = true;
+				checkpointsKept = Integer.valueOf(args[++i]);
 				break;
 			
 			case "-l":
@@ -97,6 +153,8 @@ public class Train {
 			
 		}
 		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		
 		int trainSamples = (int) (ceil(TRAIN_SAMPLES * sampleProportion));
 		int testSamples = (int) (ceil(TEST_SAMPLES * sampleProportion));
 		
@@ -111,7 +169,8 @@ public class Train {
 		NeuralNetwork network = null;
 		if (willLoadLast) {
 			
-			ArrayList<File> files = new ArrayList<>(Arrays.asList(new File("nets/").listFiles()));
+			// checkpoints that were never renamed into place end with .tmp and are left out
+			ArrayList<File> files = new ArrayList<>(Arrays.asList(new File("nets/").listFiles((directory, name) -> name.endsWith(".nwk"))));
 			File file = files.stream().max((a, b) -> {
 				
 				return a.getName().compareTo(b.getName());
@@ -136,28 +195,50 @@ public class Train {
 			
 		}
 		
+		OptimisationMethod descentMethod = new GradientDescent(network, (float) learningRate);
+		if (Matrix.getDefaultPrecision() == Matrix.Precision.HALF) {
+			descentMethod.setLossScaling(true);
+			System.out.println("Using half precision with loss scaling");
+		}
+		
 		TrainingScheme trainer;
 		
 		if (isStochastic) {
 			
-			trainer = new StochasticTraining(xTraining, yTraining, network, new GradientDescent(network, (float) learningRate), random);
-			System.out.println("Using Stochastic Training");
+			trainer = new StochasticTraining(xTraining, yTraining, network, descentMethod, random, miniBatchSize);
+			System.out.println("Using Stochastic Training with mini-batches of " + miniBatchSize);
 			
 		} else {
 			
-			trainer = new BatchTraining(xTraining, yTraining, network, new GradientDescent(network, (float) learningRate));
+			trainer = new BatchTraining(xTraining, yTraining, network, descentMethod);
 			System.out.println("Using Batch Training");
 			
 		}
 		
 		if (useTesting) {
 			trainer.setTestingData(xTesting, yTesting);
+			trainer.setTestingInterval(testingIterations, testingSeconds);
+			trainer.setTestingSamples(testingSamples);
 			System.out.println("Using Testing");
 		}
 		trainer.setCallBack(Train::callback);
 		
+		// the metrics are printed from another thread so that printing never holds up training
+		AsyncMetricsSink metrics = new AsyncMetricsSink(System.out::println);
+		trainer.setMetricsSink(metrics);
+		System.out.println(StepMetrics.CSV_HEADER);
+		
+		if (saveCheckpoints) {
+			checkpointer = new Checkpointer(new File("nets/"), checkpointIterations, checkpointSeconds, checkpointsKept);
+		}
+		
 		trainer.train();
 		
+		metrics.close();
+		if (checkpointer != null) {
+			checkpointer.close();
+		}
+		
 		try {
 			
 			network.save(new File("nets/network.nwk"));
@@ -170,23 +251,14 @@ public class Train {
 	
 	/**
 	 * 
-	 * This is called from inside of TrainingScheme for every iteration
+	 * This is called from inside of TrainingScheme for every iteration, the progress of training is
+	 * printed from the metrics instead
 	 * 
 	 */
 	public static void callback(NeuralNetwork network, int iteration, double trainingCost, double testingCost, double timeElapsed) {
 		
-		System.out.println(iteration + "," + trainingCost + "," + testingCost + "," + timeElapsed);
-		
-		if (saveEachIteration) {
-			
-			try {
-				
-				network.save(new File("nets/network" + iteration + ".nwk"));
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
+		if (checkpointer != null) {
+			checkpointer.iterated(network, iteration);
 		}
 		
 	}
@@ -205,26 +277,7 @@ public class Train {
 		
 		try {
 			
-			InputStream in = new FileInputStream(file);
-			in.read(new byte[16]);
-			
-			float[] data = new float[SAMPLE_HEIGHT * SAMPLE_WIDTH * samples];
-			
-			byte[] read = new byte[SAMPLE_HEIGHT * SAMPLE_WIDTH * samples];
-			in.read(read, 0, SAMPLE_HEIGHT * SAMPLE_WIDTH * samples);
-			
-			for (int pixel = 0; pixel < SAMPLE_HEIGHT * SAMPLE_WIDTH; pixel++) {
-				for (int sample = 0; sample < samples; sample++) {
-					
-					data[pixel * SAMPLE_HEIGHT * SAMPLE_WIDTH + sample] = (float) ((read[sample] & 0xff) / 255f);
-					
-				}
-				
-			}
-			
-			in.close();
-			
-			return new Matrix(SAMPLE_HEIGHT * SAMPLE_WIDTH, samples, data);
+			return IdxReader.readImages(file, samples);
 			
 		} catch (IOException e) {
 			
@@ -249,21 +302,7 @@ public class Train {
 		
 		try {
 			
-			InputStream in = new FileInputStream(file);
-			in.read(new byte[16]);
-			
-			float[] data = new float[10 * samples];
-			byte[] read = new byte[samples];
-			in.read(read);
-			for (int sample = 0; sample < samples; sample++) {
-				
-				data[(read[sample] & 0xff) * samples + sample] = 1;
-				
-			}
-			
-			in.close();
-			
-			return new Matrix(10, samples, data);
+			return IdxReader.readLabels(file, samples, 10);
 			
 		} catch (IOException e) {
 			e.printStackTrace();
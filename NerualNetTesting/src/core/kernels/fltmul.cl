@@ -0,0 +1,5 @@
+__kernel void fltmul(__const float a, __global STORAGE *b, __global STORAGE *out){
+	int i = get_global_id(0);
+	
+	STORE(out, i, a * LOAD(b, i));
+}
\ No newline at end of file
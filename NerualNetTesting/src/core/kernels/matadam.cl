@@ -0,0 +1,16 @@
+// One step of Adam on w, one work item per weight. m and v are the decaying averages of the
+// gradient and its square, and correction1 and correction2 undo their bias towards zero
+__kernel void matadam(
+	__global STORAGE *w, __global float *master, __global STORAGE *djdw, __global float *m, __global float *v,
+	const float gradientScale, const float learningRate, const float beta1, const float beta2, const float epsilon,
+	const float correction1, const float correction2)
+{
+	const int i = get_global_id(0);
+	
+	const float g = LOAD(djdw, i) * gradientScale;
+	const float mi = beta1 * m[i] + (1.0f - beta1) * g;
+	const float vi = beta2 * v[i] + (1.0f - beta2) * g * g;
+	m[i] = mi;
+	v[i] = vi;
+	UPDATE(w, master, i, learningRate * mi * correction1 / (sqrt(vi * correction2) + epsilon));
+}
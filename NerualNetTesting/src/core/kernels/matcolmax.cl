@@ -0,0 +1,22 @@
+// The largest value of each column of a and the row it is in, one work item per column
+__kernel void matcolmax(
+	__global STORAGE *a, const int rows, const int columns,
+	__global float *max, __global int *argmax)
+{
+	const int col = get_global_id(0);
+	if (col >= columns)
+		return;
+	
+	float best = LOAD(a, col);
+	int bestRow = 0;
+	for (int row = 1; row < rows; row++) {
+		const float v = LOAD(a, row*columns+col);
+		if (v > best) {
+			best = v;
+			bestRow = row;
+		}
+	}
+	
+	max[col] = best;
+	argmax[col] = bestRow;
+}
@@ -0,0 +1,56 @@
+// C = A.B where A is mdim*pdim and B is pdim*ndim, all row major
+//
+// Each work group computes a TS*TS tile of C, staging the matching tiles of A and B in local
+// memory. A work item computes WPT values of its column of the tile, held in registers, so every
+// value read from local memory is used WPT times. Launch with a local size of (TS, TS / WPT) and a
+// global size of (ndim, mdim / WPT), both rounded up to whole tiles
+#define TS 32
+#define WPT 8
+#define RTS (TS / WPT)
+
+__kernel void matdot(
+	const int mdim, const int ndim, const int pdim,
+	__global STORAGE *A, __global STORAGE *B, __global STORAGE *C)
+{
+	const int col = get_local_id(0);
+	const int row = get_local_id(1);
+	const int globalCol = get_group_id(0) * TS + col;
+	const int globalRow = get_group_id(1) * TS + row;
+	
+	__local float Asub[TS][TS];
+	__local float Bsub[TS][TS];
+	
+	float acc[WPT];
+	for (int w = 0; w < WPT; w++)
+		acc[w] = 0.0f;
+	
+	const int tiles = (pdim + TS - 1) / TS;
+	for (int t = 0; t < tiles; t++) {
+		
+		for (int w = 0; w < WPT; w++) {
+			const int r = row + w * RTS;
+			const int aRow = globalRow + w * RTS;
+			const int aCol = t * TS + col;
+			const int bRow = t * TS + r;
+			Asub[r][col] = (aRow < mdim && aCol < pdim) ? LOAD(A, aRow*pdim+aCol) : 0.0f;
+			Bsub[r][col] = (bRow < pdim && globalCol < ndim) ? LOAD(B, bRow*ndim+globalCol) : 0.0f;
+		}
+		
+		barrier(CLK_LOCAL_MEM_FENCE);
+		
+		for (int k = 0; k < TS; k++) {
+			const float b = Bsub[k][col];
+			for (int w = 0; w < WPT; w++)
+				acc[w] += Asub[row + w * RTS][k] * b;
+		}
+		
+		barrier(CLK_LOCAL_MEM_FENCE);
+		
+	}
+	
+	for (int w = 0; w < WPT; w++) {
+		const int cRow = globalRow + w * RTS;
+		if (cRow < mdim && globalCol < ndim)
+			STORE(C, cRow*ndim+globalCol, acc[w]);
+	}
+}
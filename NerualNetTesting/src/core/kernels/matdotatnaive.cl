@@ -1,6 +1,6 @@
-__kernel void matdotbt(
+__kernel void matdotatnaive(
 	const int mdim, const int ndim, const int pdim,
-	__global float *A, __global float *B, __global float *C)
+	__global STORAGE *A, __global STORAGE *B, __global STORAGE *C)
 {
 	int row,col,k;
 	col = get_global_id(0); // iterates through columns
@@ -9,6 +9,6 @@ __kernel void matdotbt(
 	float tmp = 0.0f;
 	
 	for (k=0; k<pdim; k++)
- 		tmp += A[row*pdim+k] * B[col*pdim+k];
- 	C[row*ndim+col] = tmp;
+ 		tmp += LOAD(A, k*mdim+row) * LOAD(B, k*ndim+col);
+ 	STORE(C, row*ndim+col, tmp);
 }
\ No newline at end of file
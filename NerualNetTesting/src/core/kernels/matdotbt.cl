@@ -0,0 +1,55 @@
+// C = A.transpose(B) where A is mdim*pdim and B is ndim*pdim, all row major
+//
+// The same tiling as matdot. The tile of B is read along its rows, so that neighbouring work items
+// read neighbouring addresses, and written transposed into local memory, which is padded by one
+// column to keep the transposed writes free of bank conflicts
+#define TS 32
+#define WPT 8
+#define RTS (TS / WPT)
+
+__kernel void matdotbt(
+	const int mdim, const int ndim, const int pdim,
+	__global STORAGE *A, __global STORAGE *B, __global STORAGE *C)
+{
+	const int col = get_local_id(0);
+	const int row = get_local_id(1);
+	const int globalCol = get_group_id(0) * TS + col;
+	const int globalRow = get_group_id(1) * TS + row;
+	const int tileCol = get_group_id(0) * TS;
+	
+	__local float Asub[TS][TS];
+	__local float Bsub[TS][TS + 1];
+	
+	float acc[WPT];
+	for (int w = 0; w < WPT; w++)
+		acc[w] = 0.0f;
+	
+	const int tiles = (pdim + TS - 1) / TS;
+	for (int t = 0; t < tiles; t++) {
+		
+		for (int w = 0; w < WPT; w++) {
+			const int r = row + w * RTS;
+			const int aRow = globalRow + w * RTS;
+			const int k = t * TS + col;
+			Asub[r][col] = (aRow < mdim && k < pdim) ? LOAD(A, aRow*pdim+k) : 0.0f;
+			Bsub[col][r] = (tileCol + r < ndim && k < pdim) ? LOAD(B, (tileCol+r)*pdim+k) : 0.0f;
+		}
+		
+		barrier(CLK_LOCAL_MEM_FENCE);
+		
+		for (int k = 0; k < TS; k++) {
+			const float b = Bsub[k][col];
+			for (int w = 0; w < WPT; w++)
+				acc[w] += Asub[row + w * RTS][k] * b;
+		}
+		
+		barrier(CLK_LOCAL_MEM_FENCE);
+		
+	}
+	
+	for (int w = 0; w < WPT; w++) {
+		const int cRow = globalRow + w * RTS;
+		if (cRow < mdim && globalCol < ndim)
+			STORE(C, cRow*ndim+globalCol, acc[w]);
+	}
+}
@@ -1,6 +1,6 @@
-__kernel void matdotat(
+__kernel void matdotnaive(
 	const int mdim, const int ndim, const int pdim,
-	__global float *A, __global float *B, __global float *C)
+	__global STORAGE *A, __global STORAGE *B, __global STORAGE *C)
 {
 	int row,col,k;
 	col = get_global_id(0); // iterates through columns
@@ -9,6 +9,6 @@ __kernel void matdotat(
 	float tmp = 0.0f;
 	
 	for (k=0; k<pdim; k++)
- 		tmp += A[k*mdim+row] * B[k*ndim+col];
- 	C[row*ndim+col] = tmp;
+ 		tmp += LOAD(A, row*pdim+k) * LOAD(B, k*ndim+col);
+ 	STORE(C, row*ndim+col, tmp);
 }
\ No newline at end of file
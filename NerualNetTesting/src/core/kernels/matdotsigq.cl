@@ -0,0 +1,23 @@
+// C = sigmoid(A.B) where A is mdim*pdim quantized to chars with a scale for each row, and B is
+// pdim*ndim, all row major, one work item per element of C
+//
+// Each value of B is rounded to the nearest multiple of bScale as it is read, so the dot product
+// is taken in ints and only scaled back once at the end
+__kernel void matdotsigq(
+	const int mdim, const int ndim, const int pdim,
+	__global const char *A, __global const float *scales,
+	__global STORAGE *B, const float bScale, __global STORAGE *C)
+{
+	const int col = get_global_id(0);
+	const int row = get_global_id(1);
+	
+	const float inverse = 1.0f / bScale;
+	
+	int acc = 0;
+	for (int k = 0; k < pdim; k++) {
+		const int b = clamp((int) rint(LOAD(B, k*ndim+col) * inverse), -127, 127);
+		acc += A[row*pdim+k] * b;
+	}
+	
+	STORE(C, row*ndim+col, 1/(1+exp(-(acc * scales[row] * bScale))));
+}
@@ -0,0 +1,5 @@
+__kernel void matfltdiv(__global STORAGE *a, __const float b, __global STORAGE *out){
+	int i = get_global_id(0);
+	
+	STORE(out, i, LOAD(a, i) / b);
+}
\ No newline at end of file
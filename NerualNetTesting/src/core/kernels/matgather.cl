@@ -0,0 +1,13 @@
+// The columns of a listed in indices from offset onwards, one work item per value of out. The
+// indices are whole numbers stored as floats
+__kernel void matgather(
+	__global STORAGE *a, const int aColumns,
+	__global float *indices, const int offset,
+	__global STORAGE *out, const int columns)
+{
+	const int i = get_global_id(0);
+	const int row = i / columns;
+	const int col = i - row * columns;
+	
+	STORE(out, i, LOAD(a, row*aColumns + (int) indices[offset+col]));
+}
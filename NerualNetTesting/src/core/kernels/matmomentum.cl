@@ -0,0 +1,13 @@
+// One step of gradient descent with momentum on w, one work item per weight. With nesterov set the
+// step looks ahead along the new velocity
+__kernel void matmomentum(
+	__global STORAGE *w, __global float *master, __global STORAGE *djdw, __global float *velocity,
+	const float gradientScale, const float learningRate, const float momentum, const int nesterov)
+{
+	const int i = get_global_id(0);
+	
+	const float g = LOAD(djdw, i) * gradientScale;
+	const float v = momentum * velocity[i] + g;
+	velocity[i] = v;
+	UPDATE(w, master, i, learningRate * (nesterov ? g + momentum * v : v));
+}
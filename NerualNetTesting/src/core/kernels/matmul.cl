@@ -0,0 +1,5 @@
+__kernel void matmul(__global STORAGE *a, __global STORAGE *b, __global STORAGE *out){
+	int i = get_global_id(0);
+	
+	STORE(out, i, LOAD(a, i) * LOAD(b, i));
+}
\ No newline at end of file
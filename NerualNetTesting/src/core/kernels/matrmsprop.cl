@@ -0,0 +1,13 @@
+// One step of RMSProp on w, one work item per weight. meanSquare is the decaying average of the
+// squared gradient
+__kernel void matrmsprop(
+	__global STORAGE *w, __global float *master, __global STORAGE *djdw, __global float *meanSquare,
+	const float gradientScale, const float learningRate, const float decay, const float epsilon)
+{
+	const int i = get_global_id(0);
+	
+	const float g = LOAD(djdw, i) * gradientScale;
+	const float s = decay * meanSquare[i] + (1.0f - decay) * g * g;
+	meanSquare[i] = s;
+	UPDATE(w, master, i, learningRate * g / (sqrt(s) + epsilon));
+}
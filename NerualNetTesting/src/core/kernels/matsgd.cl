@@ -0,0 +1,12 @@
+// One step of gradient descent on w, one work item per weight. The weights are read from and
+// written to master, their copy in single precision, when w is stored in half precision, and the
+// gradient is multiplied by gradientScale to undo loss scaling
+__kernel void matsgd(
+	__global STORAGE *w, __global float *master, __global STORAGE *djdw,
+	const float gradientScale, const float learningRate)
+{
+	const int i = get_global_id(0);
+	
+	const float g = LOAD(djdw, i) * gradientScale;
+	UPDATE(w, master, i, learningRate * g);
+}
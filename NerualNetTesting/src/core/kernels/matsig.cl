@@ -0,0 +1,8 @@
+__kernel void matsig( 
+	__global STORAGE *mIn, __global STORAGE *mOut)
+{
+	int i;
+	i = get_global_id(0);
+	
+	STORE(mOut, i, 1/(1+exp(-LOAD(mIn, i))));
+}
\ No newline at end of file
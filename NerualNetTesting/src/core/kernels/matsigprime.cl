@@ -0,0 +1,10 @@
+__kernel void matsigprime( 
+	__global STORAGE *mIn, __global STORAGE *mOut)
+{
+	int i;
+	i = get_global_id(0);
+	
+	float tmp = LOAD(mIn, i);
+	
+	STORE(mOut, i, tmp * (1-tmp));
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+// Partial sums of (a - b)^2, reduced the same way as matsum
+__kernel void matsqdiff(
+	__global STORAGE *a, __global STORAGE *b, const int size,
+	__global float *partial, __local float *scratch)
+{
+	const int lid = get_local_id(0);
+	
+	float tmp = 0.0f;
+	for (int i = get_global_id(0); i < size; i += get_global_size(0)) {
+		const float d = LOAD(a, i) - LOAD(b, i);
+		tmp += d * d;
+	}
+	scratch[lid] = tmp;
+	
+	for (int offset = get_local_size(0) / 2; offset > 0; offset /= 2) {
+		barrier(CLK_LOCAL_MEM_FENCE);
+		if (lid < offset)
+			scratch[lid] += scratch[lid + offset];
+	}
+	
+	if (lid == 0)
+		partial[get_group_id(0)] = scratch[0];
+}
@@ -0,0 +1,7 @@
+__kernel void matsubsigprime(__global STORAGE *a, __global STORAGE *b, __global STORAGE *x, __global STORAGE *out){
+	int i = get_global_id(0);
+	
+	float tmp = LOAD(x, i);
+	
+	STORE(out, i, (LOAD(a, i) - LOAD(b, i)) * tmp * (1-tmp));
+}
\ No newline at end of file
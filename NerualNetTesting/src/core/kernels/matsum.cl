@@ -0,0 +1,26 @@
+// Partial sums of a, or of its squares when square is non zero
+//
+// Each work item accumulates a strided slice of a, then the work group combines them in local
+// memory in a tree and writes one value to partial[group]. The local size must be a power of two
+__kernel void matsum(
+	__global STORAGE *a, const int size, const int square,
+	__global float *partial, __local float *scratch)
+{
+	const int lid = get_local_id(0);
+	
+	float tmp = 0.0f;
+	for (int i = get_global_id(0); i < size; i += get_global_size(0)) {
+		const float v = LOAD(a, i);
+		tmp += square ? v * v : v;
+	}
+	scratch[lid] = tmp;
+	
+	for (int offset = get_local_size(0) / 2; offset > 0; offset /= 2) {
+		barrier(CLK_LOCAL_MEM_FENCE);
+		if (lid < offset)
+			scratch[lid] += scratch[lid + offset];
+	}
+	
+	if (lid == 0)
+		partial[get_group_id(0)] = scratch[0];
+}
@@ -0,0 +1,18 @@
+// How the kernels load and store the values of matrices. Matrices in half precision are read and
+// written with vload_half and vstore_half_rte, which are part of core OpenCL, so they work on
+// devices without cl_khr_fp16 and all of the arithmetic is still done in single precision.
+//
+// UPDATE takes a step of an optimiser. Weights in half precision have a copy in single precision
+// called master, which the step is taken from so that small steps aren't lost to rounding, and
+// weights in single precision are passed as their own master
+#ifdef STORAGE_HALF
+#define STORAGE half
+#define LOAD(p, i) vload_half((i), (p))
+#define STORE(p, i, v) vstore_half_rte((v), (i), (p))
+#define UPDATE(w, master, i, step) { const float updated = (master)[i] - (step); (master)[i] = updated; STORE(w, i, updated); }
+#else
+#define STORAGE float
+#define LOAD(p, i) ((p)[i])
+#define STORE(p, i, v) ((p)[i] = (v))
+#define UPDATE(w, master, i, step) ((w)[i] -= (step))
+#endif
@@ -0,0 +1,202 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Serves a trained network over HTTP, batching requests that arrive close together with a
+ * MicroBatcher.
+ * 
+ * POST /classify takes one sample as its body, either as raw pixels from 0 to 255 when the content
+ * type is application/octet-stream, or otherwise as values separated by commas or whitespace. The
+ * response is the most likely class on the first line followed by every output of the network on
+ * the second. GET /stats describes the latencies and the throughput, which are also printed every
+ * ten seconds while requests are coming in.
+ * 
+ * Usage: InferenceServer [-n network] [-p port] [-b maxBatch] [-w maxWaitMillis]
+ * 
+ * @author Kacper
+ *
+ */
+public class InferenceServer {
+	
+	private static final int REPORT_PERIOD = 10;
+	
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		
+		String networkFile = "nets/network.nwk";
+		int port = 8080;
+		int maxBatch = 64;
+		long maxWait = 2;
+		
+		for (int i = 0; i < args.length; i++) {
+			
+			switch (args[i]) {
+			
+			case "-n":
+				
+				networkFile = args[++i];
+				break;
+			
+			case "-p":
+				
+				port = Integer.valueOf(args[++i]);
+				break;
+			
+			case "-b":
+				
+				maxBatch = Integer.valueOf(args[++i]);
+				break;
+			
+			case "-w":
+				
+				maxWait = Long.valueOf(args[++i]);
+				break;
+			
+			default:
+				
+				assert false;
+				break;
+				
+			}
+			
+		}
+		
+		System.out.println("Using " + Matrix.getBackend().getName() + " backend");
+		
+		NeuralNetwork network = NeuralNetwork.load(new File(networkFile));
+		MicroBatcher batcher = new MicroBatcher(network, maxBatch, maxWait, TimeUnit.MILLISECONDS);
+		
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/classify", exchange -> classify(exchange, batcher));
+		server.createContext("/stats", exchange -> respond(exchange, 200, batcher.getStats().report()));
+		
+		// requests only wait on their futures, so the batches are formed from every thread at once
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		long[] reported = new long[1];
+		reporter.scheduleAtFixedRate(() -> {
+			
+			LatencyStats stats = batcher.getStats();
+			if (stats.getRequests() != reported[0]) {
+				reported[0] = stats.getRequests();
+				System.out.println(stats.report());
+			}
+			
+		}, REPORT_PERIOD, REPORT_PERIOD, TimeUnit.SECONDS);
+		
+		System.out.println("Serving " + networkFile + " on port " + port + " with batches of up to " + maxBatch + " waiting up to " + maxWait + "ms");
+		
+	}
+	
+	private static void classify(HttpExchange exchange, MicroBatcher batcher) throws IOException {
+		
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			respond(exchange, 405, "Only POST is supported");
+			return;
+		}
+		
+		float[] input;
+		try {
+			input = parse(exchange);
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "Unable to read the sample: " + e.getMessage());
+			return;
+		}
+		
+		float[] output;
+		try {
+			output = batcher.submit(input).get();
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, e.getMessage());
+			return;
+		} catch (InterruptedException | ExecutionException e) {
+			respond(exchange, 500, e.toString());
+			return;
+		}
+		
+		int best = 0;
+		StringBuilder response = new StringBuilder();
+		for (int i = 0; i < output.length; i++) {
+			
+			if (output[i] > output[best]) {
+				best = i;
+			}
+			response.append(i == 0 ? "" : ",").append(output[i]);
+			
+		}
+		respond(exchange, 200, best + "\n" + response);
+		
+	}
+	
+	private static float[] parse(HttpExchange exchange) throws IOException {
+		
+		byte[] body = readFully(exchange.getRequestBody());
+		
+		String type = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (type != null && type.startsWith("application/octet-stream")) {
+			
+			float[] input = new float[body.length];
+			for (int i = 0; i < body.length; i++) {
+				input[i] = (body[i] & 0xFF) / 255f;
+			}
+			return input;
+			
+		}
+		
+		String text = new String(body, StandardCharsets.US_ASCII).trim();
+		if (text.isEmpty()) {
+			return new float[0];
+		}
+		
+		String[] values = text.split("[,\\s]+");
+		float[] input = new float[values.length];
+		for (int i = 0; i < values.length; i++) {
+			input[i] = Float.parseFloat(values[i]);
+		}
+		return input;
+		
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+		
+	}
+	
+	private static void respond(HttpExchange exchange, int status, String response) throws IOException {
+		
+		byte[] bytes = (response + "\n").getBytes(StandardCharsets.US_ASCII);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * 
+ * Keeps the latencies of the most recent requests served by a MicroBatcher, and how many requests
+ * each batch held, so that the batching window can be tuned
+ * 
+ * @see MicroBatcher
+ * 
+ * @author Kacper
+ *
+ */
+public final class LatencyStats {
+	
+	/**
+	 * How many of the latest latencies the percentiles are taken over
+	 */
+	private static final int WINDOW = 10000;
+	
+	private final long[] latencies = new long[WINDOW];
+	private long requests;
+	
+	private long batches;
+	private long batchedRequests;
+	
+	private long intervalStart = System.nanoTime();
+	private long intervalRequests;
+	
+	synchronized void record(long latency) {
+		
+		latencies[(int) (requests % WINDOW)] = latency;
+		requests++;
+		intervalRequests++;
+		
+	}
+	
+	synchronized void recordBatch(int size) {
+		
+		batches++;
+		batchedRequests += size;
+		
+	}
+	
+	/**
+	 * 
+	 * @param percentile
+	 *            - between 0 and 100
+	 * @return the latency in milliseconds that the given percentage of the latest requests were
+	 *         served within
+	 */
+	public synchronized double getPercentile(double percentile) {
+		
+		int count = (int) Math.min(requests, WINDOW);
+		if (count == 0) {
+			return 0;
+		}
+		
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the average amount of requests in each batch
+	 */
+	public synchronized double getMeanBatchSize() {
+		
+		return batches == 0 ? 0 : (double) batchedRequests / batches;
+		
+	}
+	
+	public synchronized long getRequests() {
+		
+		return requests;
+		
+	}
+	
+	/**
+	 * 
+	 * Describes the throughput since the last report, and the latencies of the latest requests
+	 * 
+	 * @return the report
+	 */
+	public synchronized String report() {
+		
+		long now = System.nanoTime();
+		double requestsPerSecond = intervalRequests / ((now - intervalStart) / 1e9);
+		intervalStart = now;
+		intervalRequests = 0;
+		
+		return String.format("requests=%d, requestsPerSecond=%.1f, p50=%.2fms, p99=%.2fms, meanBatch=%.1f", requests, requestsPerSecond, getPercentile(50), getPercentile(99), getMeanBatchSize());
+		
+	}
+	
+}
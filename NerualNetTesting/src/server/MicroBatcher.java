@@ -0,0 +1,237 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Collects single samples submitted from any number of threads into batches, which are forwarded
+ * through the network together on one thread. A batch is forwarded once it holds maxBatch samples,
+ * or maxWait after its first sample arrived, whichever is sooner.
+ * 
+ * Batches are padded to a power of two columns, so that the network only keeps a few widths of
+ * activations
+ * 
+ * @see InferenceServer
+ * 
+ * @author Kacper
+ *
+ */
+public class MicroBatcher implements AutoCloseable {
+	
+	private final NeuralNetwork network;
+	private final int maxBatch;
+	private final long maxWait;
+	
+	private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+	private final Map<Integer, Input> inputs = new HashMap<>();
+	private final LatencyStats stats = new LatencyStats();
+	
+	private final Thread worker;
+	
+	/**
+	 * 
+	 * @param network
+	 *            - the network that samples are forwarded through
+	 * @param maxBatch
+	 *            - the most samples in one batch
+	 * @param maxWait
+	 *            - the longest the first sample of a batch waits for others
+	 * @param unit
+	 *            - the unit of maxWait
+	 */
+	public MicroBatcher(NeuralNetwork network, int maxBatch, long maxWait, TimeUnit unit) {
+		
+		assert maxBatch >= 1 && maxWait >= 0;
+		
+		this.network = network;
+		this.maxBatch = maxBatch;
+		this.maxWait = unit.toNanos(maxWait);
+		
+		worker = new Thread(this::run, "MicroBatcher");
+		worker.setDaemon(true);
+		worker.start();
+		
+	}
+	
+	/**
+	 * 
+	 * Queues a sample to be forwarded with the next batch
+	 * 
+	 * @param input
+	 *            - the sample, with one value for each input of the network
+	 * @return a future completed with the output of the network for the sample
+	 */
+	public CompletableFuture<float[]> submit(float[] input) {
+		
+		if (input.length != network.getInputLayerSize()) {
+			throw new IllegalArgumentException("Expected " + network.getInputLayerSize() + " inputs but got " + input.length);
+		}
+		
+		Request request = new Request(input);
+		requests.add(request);
+		return request.output;
+		
+	}
+	
+	public LatencyStats getStats() {
+		
+		return stats;
+		
+	}
+	
+	/**
+	 * 
+	 * Stops forwarding batches. Samples that are still queued are completed exceptionally
+	 *
+	 */
+	@Override
+	public void close() {
+		
+		worker.interrupt();
+		try {
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		for (Request request : requests) {
+			request.output.completeExceptionally(new IllegalStateException("The batcher has been closed"));
+		}
+		
+	}
+	
+	private void run() {
+		
+		List<Request> batch = new ArrayList<>(maxBatch);
+		
+		while (true) {
+			
+			try {
+				
+				batch.add(requests.take());
+				
+				// after the deadline only the samples that are already queued are added
+				long deadline = batch.get(0).arrival + maxWait;
+				while (batch.size() < maxBatch) {
+					
+					long wait = deadline - System.nanoTime();
+					Request request = wait > 0 ? requests.poll(wait, TimeUnit.NANOSECONDS) : requests.poll();
+					if (request == null) {
+						break;
+					}
+					batch.add(request);
+					
+				}
+				
+			} catch (InterruptedException e) {
+				
+				for (Request request : batch) {
+					request.output.completeExceptionally(new IllegalStateException("The batcher has been closed"));
+				}
+				return;
+				
+			}
+			
+			try {
+				
+				forward(batch);
+				
+			} catch (RuntimeException e) {
+				
+				for (Request request : batch) {
+					request.output.completeExceptionally(e);
+				}
+				
+			}
+			batch.clear();
+			
+		}
+		
+	}
+	
+	private void forward(List<Request> batch) {
+		
+		int columns = Math.min(Integer.highestOneBit(batch.size() * 2 - 1), maxBatch);
+		Input input = inputs.computeIfAbsent(columns, Input::new);
+		
+		// each sample is a column of the input, and the padding columns are left as zero
+		int rows = network.getInputLayerSize();
+		for (int column = 0; column < batch.size(); column++) {
+			
+			float[] sample = batch.get(column).input;
+			for (int row = 0; row < rows; row++) {
+				input.data[row * columns + column] = sample[row];
+			}
+			
+		}
+		for (int column = batch.size(); column < columns; column++) {
+			for (int row = 0; row < rows; row++) {
+				input.data[row * columns + column] = 0;
+			}
+		}
+		input.x.setData(input.data);
+		
+		float[] yHat = network.forward(input.x).getData();
+		
+		long now = System.nanoTime();
+		int outputs = network.getOutputLayerSize();
+		for (int column = 0; column < batch.size(); column++) {
+			
+			float[] output = new float[outputs];
+			for (int row = 0; row < outputs; row++) {
+				output[row] = yHat[row * columns + column];
+			}
+			
+			Request request = batch.get(column);
+			stats.record(now - request.arrival);
+			request.output.complete(output);
+			
+		}
+		stats.recordBatch(batch.size());
+		
+	}
+	
+	private static class Request {
+		
+		private final float[] input;
+		private final long arrival = System.nanoTime();
+		private final CompletableFuture<float[]> output = new CompletableFuture<>();
+		
+		private Request(float[] input) {
+			
+			this.input = input;
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * The input matrix for one batch width, and the array it is filled from
+	 *
+	 */
+	private class Input {
+		
+		private final float[] data;
+		private final Matrix x;
+		
+		private Input(int columns) {
+			
+			data = new float[network.getInputLayerSize() * columns];
+			x = new Matrix(network.getInputLayerSize(), columns);
+			
+		}
+		
+	}
+	
+}
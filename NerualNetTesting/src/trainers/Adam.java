@@ -0,0 +1,67 @@
+package trainers;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Adaptive moment estimation, which combines momentum with the per weight step sizes of RMSProp.
+ * Both averages start at zero, so they are scaled up by how many steps have been taken to correct
+ * their bias
+ * 
+ * @author Kacper
+ *
+ */
+public class Adam extends OptimisationMethod {
+	
+	private final float learningRate;
+	private final float beta1;
+	private final float beta2;
+	private final float epsilon;
+	
+	private Matrix[] m;
+	private Matrix[] v;
+	private int step;
+	
+	public Adam(NeuralNetwork network, float learningRate) {
+		
+		this(network, learningRate, 0.9f, 0.999f, 1e-8f);
+		
+	}
+	
+	/**
+	 * 
+	 * @param beta1
+	 *            - how much of the average of the gradient is kept each step
+	 * @param beta2
+	 *            - how much of the average of the squared gradient is kept each step
+	 * @param epsilon
+	 *            - keeps the step finite where the gradient has been zero
+	 */
+	public Adam(NeuralNetwork network, float learningRate, float beta1, float beta2, float epsilon) {
+		
+		super(network);
+		
+		this.learningRate = learningRate;
+		this.beta1 = beta1;
+		this.beta2 = beta2;
+		this.epsilon = epsilon;
+		
+	}
+	
+	@Override
+	protected void update(Matrix[] w, Matrix[] masters, Matrix[] djdw, float gradientScale) {
+		
+		if (m == null) {
+			m = zeros(w);
+			v = zeros(w);
+		}
+		
+		step++;
+		for (int i = 0; i < w.length; i++) {
+			Matrix.adam(w[i], masters[i], djdw[i], m[i], v[i], gradientScale, learningRate, beta1, beta2, epsilon, step);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,123 @@
+package trainers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 
+ * A MetricsSink that never holds up training. The metrics are put in a bounded queue and passed on
+ * from a thread of its own, so printing them or sending them elsewhere happens alongside training.
+ * If whatever they are passed to falls so far behind that the queue fills up, the newest metrics
+ * are dropped and counted rather than waited on
+ * 
+ * @author Kacper
+ *
+ */
+public class AsyncMetricsSink implements MetricsSink, AutoCloseable {
+	
+	public static final int DEFAULT_CAPACITY = 1024;
+	
+	private static final StepMetrics CLOSED = new StepMetrics(-1, 0, 0, 0, -1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+	
+	private final BlockingQueue<StepMetrics> queue;
+	private final Consumer<StepMetrics> consumer;
+	private final Thread thread;
+	private final AtomicLong dropped = new AtomicLong();
+	
+	/**
+	 * 
+	 * @param consumer
+	 *            - what the metrics are passed on to
+	 */
+	public AsyncMetricsSink(Consumer<StepMetrics> consumer) {
+		
+		this(consumer, DEFAULT_CAPACITY);
+		
+	}
+	
+	/**
+	 * 
+	 * @param consumer
+	 *            - what the metrics are passed on to
+	 * @param capacity
+	 *            - how many metrics can wait to be passed on before more are dropped
+	 */
+	public AsyncMetricsSink(Consumer<StepMetrics> consumer, int capacity) {
+		
+		assert capacity > 0;
+		
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.consumer = consumer;
+		
+		thread = new Thread(this::run, "Metrics");
+		thread.setDaemon(true);
+		thread.start();
+		
+	}
+	
+	@Override
+	public void accept(StepMetrics metrics) {
+		
+		if (!queue.offer(metrics)) {
+			dropped.incrementAndGet();
+		}
+		
+	}
+	
+	private void run() {
+		
+		try {
+			
+			for (StepMetrics metrics = queue.take(); metrics != CLOSED; metrics = queue.take()) {
+				
+				try {
+					consumer.accept(metrics);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many metrics have been dropped because the queue was full
+	 */
+	public long getDropped() {
+		
+		return dropped.get();
+		
+	}
+	
+	/**
+	 * 
+	 * Passes on every metric that is still queued and then stops the thread that passes them on
+	 *
+	 */
+	@Override
+	public void close() {
+		
+		try {
+			
+			queue.put(CLOSED);
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (dropped.get() > 0) {
+			System.err.println("Dropped the metrics of " + dropped.get() + " iterations");
+		}
+		
+	}
+	
+}
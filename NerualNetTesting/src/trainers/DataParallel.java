@@ -0,0 +1,186 @@
+package trainers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Trains a network on several devices at once. Each batch is split into a share of its columns for
+ * every device, which runs the forward and backward pass on its share with its own replica of the
+ * network. The gradients of the replicas are then added up on the first device, where the network
+ * itself is, so that one step is taken for the whole batch, and the new weights are copied back to
+ * the replicas.
+ * 
+ * As the gradients of the network are sums over the samples, adding up the gradients of the shares
+ * gives exactly the gradient of the whole batch
+ * 
+ * @see TrainingScheme#setDevices(int)
+ * 
+ * @author Kacper
+ *
+ */
+public class DataParallel {
+	
+	private final NeuralNetwork network;
+	private final NeuralNetwork[] replicas;
+	
+	private final Map<Integer, Shards> shards = new HashMap<>();
+	
+	/**
+	 * 
+	 * @param network
+	 *            - the network that is trained, which is used by the first device
+	 * @param devices
+	 *            - how many devices the batches are split over, at most Matrix.getDeviceCount()
+	 */
+	public DataParallel(NeuralNetwork network, int devices) {
+		
+		assert devices >= 1 && devices <= Matrix.getDeviceCount();
+		
+		this.network = network;
+		
+		replicas = new NeuralNetwork[devices];
+		replicas[0] = network;
+		for (int i = 1; i < devices; i++) {
+			replicas[i] = new NeuralNetwork(network);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many devices the batches are split over
+	 */
+	public int getDevices() {
+		
+		return replicas.length;
+		
+	}
+	
+	/**
+	 * 
+	 * Takes one step of the optimisation method on a batch
+	 * 
+	 * @param x
+	 *            - the input data, with at least one column for each device
+	 * @param y
+	 *            - the expected output
+	 * @param descentMethod
+	 *            - the method which updates the weights of the network
+	 * @return the cost of the batch before the step was taken
+	 */
+	public float step(Matrix x, Matrix y, OptimisationMethod descentMethod) {
+		
+		assert x.getColumns() >= replicas.length && x.getColumns() == y.getColumns();
+		
+		Shards shards = getShards(x.getColumns());
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		CompletableFuture<Float>[] errors = new CompletableFuture[replicas.length];
+		Matrix[][] djdw = new Matrix[replicas.length][];
+		
+		// the batch and the weights of the replicas were written on the first device
+		Matrix.finish();
+		
+		int column = 0;
+		for (int i = 0; i < replicas.length; i++) {
+			
+			Matrix.setDevice(i);
+			
+			// the gradients of the shares are added up, so they must all have the same loss scale
+			replicas[i].setLossScale(network.getLossScale());
+			
+			Matrix xShard = Matrix.copyColumns(x, column, shards.x[i]);
+			Matrix yShard = Matrix.copyColumns(y, column, shards.y[i]);
+			column += xShard.getColumns();
+			
+			Matrix yHat = replicas[i].forward(xShard);
+			errors[i] = Matrix.squaredErrorAsync(yShard, yHat);
+			djdw[i] = replicas[i].getCostPrime(xShard, yShard, yHat);
+			
+		}
+		
+		Matrix.finish();
+		Matrix.setDevice(0);
+		
+		for (int i = 1; i < replicas.length; i++) {
+			for (int j = 0; j < djdw[0].length; j++) {
+				Matrix.add(djdw[0][j], djdw[i][j], djdw[0][j]);
+			}
+		}
+		
+		descentMethod.descend(network.getW(), djdw[0]);
+		
+		Matrix.finish();
+		
+		for (int i = 1; i < replicas.length; i++) {
+			
+			Matrix.setDevice(i);
+			
+			Matrix[] w = network.getW();
+			Matrix[] replicaW = replicas[i].getW();
+			for (int j = 0; j < w.length; j++) {
+				Matrix.copy(w[j], replicaW[j]);
+			}
+			
+		}
+		
+		Matrix.setDevice(0);
+		
+		float error = 0;
+		for (CompletableFuture<Float> shardError : errors) {
+			error += shardError.join();
+		}
+		return 0.5f * error / x.getColumns();
+		
+	}
+	
+	/**
+	 * Finds the shares of a batch width, creating them the first time the width is seen. The
+	 * columns are split as evenly as they can be
+	 */
+	private Shards getShards(int columns) {
+		
+		Shards shard = shards.get(columns);
+		if (shard == null) {
+			
+			shard = new Shards(columns);
+			shards.put(columns, shard);
+			
+		}
+		return shard;
+		
+	}
+	
+	/**
+	 * 
+	 * The share of the input and the expected output of a batch for each device
+	 *
+	 */
+	private class Shards {
+		
+		private final Matrix[] x;
+		private final Matrix[] y;
+		
+		private Shards(int columns) {
+			
+			x = new Matrix[replicas.length];
+			y = new Matrix[replicas.length];
+			
+			for (int i = 0; i < replicas.length; i++) {
+				
+				int shardColumns = columns / replicas.length + (i < columns % replicas.length ? 1 : 0);
+				x[i] = new Matrix(network.getInputLayerSize(), shardColumns);
+				y[i] = new Matrix(network.getOutputLayerSize(), shardColumns);
+				
+			}
+			
+		}
+		
+	}
+	
+}
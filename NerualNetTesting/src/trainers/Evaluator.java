@@ -0,0 +1,269 @@
+package trainers;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import core.Matrix;
+import core.NeuralNetwork;
+import core.Profiler;
+
+/**
+ * 
+ * Finds the testing cost of a network while it trains without holding up training. The weights
+ * are copied into a snapshot on the device, after the step that was just taken, and the cost of the
+ * snapshot is found on a thread of its own, which has its own queue, so training carries on taking
+ * steps while it is tested.
+ * 
+ * The network is tested once enough iterations or enough time has passed since it last was. If the
+ * previous test is still running it is put off until that has finished. It can be tested on only
+ * some of the testing samples, in which case each test uses the next run of them, so that every
+ * sample is tested on in turn
+ * 
+ * @see TrainingScheme#setTestingInterval(int, double)
+ * 
+ * @author Kacper
+ *
+ */
+class Evaluator implements AutoCloseable {
+	
+	private final NeuralNetwork network;
+	private final Matrix xTesting;
+	private final Matrix yTesting;
+	private final int everyIterations;
+	private final long everyNanos;
+	private final int samples;
+	
+	private final ExecutorService tester;
+	
+	private NeuralNetwork snapshot;
+	private Matrix xSample;
+	private Matrix ySample;
+	private int column;
+	
+	private CompletableFuture<Float> pending;
+	private int pendingIteration;
+	private int iteration;
+	private int lastIteration;
+	private long lastTime;
+	
+	private float cost;
+	private int costIteration = -1;
+	
+	/**
+	 * 
+	 * @param network
+	 *            - the network being trained
+	 * @param xTesting
+	 *            - the input of the testing data
+	 * @param yTesting
+	 *            - the expected output of the testing data
+	 * @param everyIterations
+	 *            - how many iterations there are between tests, 0 for no limit
+	 * @param everySeconds
+	 *            - how long there is between tests, 0 for no limit
+	 * @param samples
+	 *            - how many of the testing samples each test uses, 0 for all of them
+	 */
+	Evaluator(NeuralNetwork network, Matrix xTesting, Matrix yTesting, int everyIterations, double everySeconds, int samples) {
+		
+		assert everyIterations >= 0 && everySeconds >= 0 && samples >= 0 && samples <= xTesting.getColumns();
+		
+		this.network = network;
+		this.xTesting = xTesting;
+		this.yTesting = yTesting;
+		this.everyIterations = everyIterations;
+		this.everyNanos = (long) (everySeconds * 1e9);
+		this.samples = samples == xTesting.getColumns() ? 0 : samples;
+		
+		tester = Executors.newSingleThreadExecutor(runnable -> {
+			
+			Thread thread = new Thread(runnable, "Evaluator");
+			thread.setDaemon(true);
+			return thread;
+			
+		});
+		
+		lastTime = System.nanoTime();
+		
+	}
+	
+	/**
+	 * 
+	 * Takes in the result of the last test if it has finished, and starts another if one is due.
+	 * This is meant to be called on the training thread after every iteration
+	 * 
+	 * @param iteration
+	 *            - how many iterations the network has been trained for
+	 * @return whether a test was started
+	 */
+	boolean iterated(int iteration) {
+		
+		this.iteration = iteration;
+		
+		if (pending != null && !pending.isDone()) {
+			return false;
+		}
+		await();
+		
+		boolean due = everyIterations > 0 && iteration - lastIteration >= everyIterations || everyNanos > 0 && System.nanoTime() - lastTime >= everyNanos;
+		if (!due && costIteration >= 0) {
+			return false;
+		}
+		
+		evaluate(iteration);
+		return true;
+		
+	}
+	
+	/**
+	 * 
+	 * Starts a test of the network as it is once everything queued so far has run
+	 * 
+	 * @param iteration
+	 *            - how many iterations the network has been trained for
+	 * @return a future completed with the cost
+	 */
+	CompletableFuture<Float> evaluate(int iteration) {
+		
+		return evaluate(iteration, false);
+		
+	}
+	
+	private CompletableFuture<Float> evaluate(int iteration, boolean everySample) {
+		
+		assert pending == null || pending.isDone();
+		
+		this.iteration = Math.max(this.iteration, iteration);
+		lastIteration = iteration;
+		lastTime = System.nanoTime();
+		
+		if (snapshot == null) {
+			snapshot = new NeuralNetwork(network);
+		} else {
+			
+			Matrix[] w = network.getW();
+			Matrix[] snapshotW = snapshot.getW();
+			for (int i = 0; i < w.length; i++) {
+				Matrix.copy(w[i], snapshotW[i]);
+			}
+			
+		}
+		
+		// the tester has its own queue, so it only starts once the copy on this one has run
+		pending = Matrix.marker().thenApplyAsync(ready -> test(everySample), tester);
+		pendingIteration = iteration;
+		
+		return pending;
+		
+	}
+	
+	/**
+	 * Finds the cost of the snapshot, on the tester's thread
+	 */
+	private float test(boolean everySample) {
+		
+		Profiler.setPhase("testing");
+		
+		if (samples == 0 || everySample) {
+			return snapshot.getCost(xTesting, yTesting);
+		}
+		
+		if (xSample == null) {
+			
+			xSample = new Matrix(xTesting.getRows(), samples);
+			ySample = new Matrix(yTesting.getRows(), samples);
+			
+		}
+		
+		if (column + samples > xTesting.getColumns()) {
+			column = 0;
+		}
+		Matrix.copyColumns(xTesting, column, xSample);
+		Matrix.copyColumns(yTesting, column, ySample);
+		column += samples;
+		
+		return snapshot.getCost(xSample, ySample);
+		
+	}
+	
+	/**
+	 * 
+	 * Waits for the test that is running, if there is one, and takes in its result
+	 *
+	 */
+	void await() {
+		
+		if (pending != null) {
+			
+			cost = pending.join();
+			costIteration = pendingIteration;
+			pending = null;
+			
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @return the cost of the last test that has finished, or 0 if none has
+	 */
+	float getCost() {
+		
+		return cost;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the iteration the last test that has finished was of, or -1 if none has
+	 */
+	int getCostIteration() {
+		
+		return costIteration;
+		
+	}
+	
+	/**
+	 * 
+	 * Waits for the test that is running, if there is one, then tests the network as it is on every
+	 * testing sample if the last test was of an earlier iteration or only some of the samples, so
+	 * that the last cost is that of the final weights. The snapshot is then released and the thread that runs the tests stopped
+	 *
+	 */
+	@Override
+	public void close() {
+		
+		await();
+		if (costIteration != iteration || samples != 0) {
+			
+			evaluate(iteration, true);
+			await();
+			
+		}
+		
+		// the workspaces of the snapshot belong to the tester's thread, so they are released on it
+		tester.execute(() -> {
+			
+			if (snapshot != null) {
+				snapshot.release();
+			}
+			if (xSample != null) {
+				
+				xSample.release();
+				ySample.release();
+				
+			}
+			
+		});
+		tester.shutdown();
+		try {
+			tester.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+	}
+	
+}
@@ -22,13 +22,10 @@ public class GradientDescent extends OptimisationMethod {
 	}
 	
 	@Override
-	public void descend(Matrix[] w, Matrix[] djdw) {
+	protected void update(Matrix[] w, Matrix[] masters, Matrix[] djdw, float gradientScale) {
 		
 		for (int i = 0; i < w.length; i++) {
-			
-			Matrix.multiply(learningRate, djdw[i], djdw[i]);
-			Matrix.sub(w[i], djdw[i], w[i]);
-			
+			Matrix.gradientDescent(w[i], masters[i], djdw[i], gradientScale, learningRate);
 		}
 		
 	}
@@ -0,0 +1,19 @@
+package trainers;
+
+/**
+ * 
+ * Receives the metrics of every iteration of TrainingScheme.train. It is called on the training
+ * thread between iterations, so it should hand the metrics off rather than doing anything slow with
+ * them, as AsyncMetricsSink does
+ * 
+ * @see StepMetrics
+ * @see AsyncMetricsSink
+ * 
+ * @author Kacper
+ *
+ */
+public interface MetricsSink {
+	
+	public void accept(StepMetrics metrics);
+	
+}
@@ -0,0 +1,59 @@
+package trainers;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Gradient descent which keeps going in the direction of the past steps, so that it speeds up along
+ * shallow valleys and is damped across narrow ones. With Nesterov's variant the gradient is also
+ * added on top of the velocity it leads to
+ * 
+ * @author Kacper
+ *
+ */
+public class Momentum extends OptimisationMethod {
+	
+	private final float learningRate;
+	private final float momentum;
+	private final boolean nesterov;
+	
+	private Matrix[] velocity;
+	
+	public Momentum(NeuralNetwork network, float learningRate) {
+		
+		this(network, learningRate, 0.9f, false);
+		
+	}
+	
+	/**
+	 * 
+	 * @param momentum
+	 *            - how much of the velocity is kept each step, between 0 and 1
+	 * @param nesterov
+	 *            - whether to use Nesterov's accelerated gradient
+	 */
+	public Momentum(NeuralNetwork network, float learningRate, float momentum, boolean nesterov) {
+		
+		super(network);
+		
+		this.learningRate = learningRate;
+		this.momentum = momentum;
+		this.nesterov = nesterov;
+		
+	}
+	
+	@Override
+	protected void update(Matrix[] w, Matrix[] masters, Matrix[] djdw, float gradientScale) {
+		
+		if (velocity == null) {
+			velocity = zeros(w);
+		}
+		
+		for (int i = 0; i < w.length; i++) {
+			Matrix.momentum(w[i], masters[i], djdw[i], velocity[i], gradientScale, learningRate, momentum, nesterov);
+		}
+		
+	}
+	
+}
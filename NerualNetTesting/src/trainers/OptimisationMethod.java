@@ -1,11 +1,24 @@
 package trainers;
 
+import java.util.concurrent.CompletableFuture;
+
 import core.Matrix;
+import core.Matrix.Precision;
 import core.NeuralNetwork;
 
 /**
  * 
- * A super class for all optimisation methods used by TrainingScheme
+ * A super class for all optimisation methods used by TrainingScheme.
+ * 
+ * Weights stored in half precision are updated through a copy of them in single precision, the
+ * master weights, so that steps too small to change a half are not lost. The masters are made from
+ * the weights the first time they are descended, so weights changed by anything else afterwards
+ * should be given to a new method.
+ * 
+ * With loss scaling on, the network multiplies its gradients by a scale so that small ones don't
+ * underflow in half precision, and the method divides them by it again. A step whose gradients
+ * overflowed is skipped and the scale halved, and after every LOSS_SCALE_GROWTH_INTERVAL steps
+ * without overflowing the scale is doubled
  *
  * @see TrainingScheme
  * 
@@ -14,14 +27,172 @@ import core.NeuralNetwork;
  */
 public abstract class OptimisationMethod {
 	
+	public static final float INITIAL_LOSS_SCALE = 65536;
+	public static final int LOSS_SCALE_GROWTH_INTERVAL = 2000;
+	
 	protected NeuralNetwork network;
 	
+	private Matrix[] weights;
+	private Matrix[] masters;
+	
+	private boolean lossScaling;
+	private int stepsSinceOverflow;
+	private int skippedSteps;
+	
 	public OptimisationMethod(NeuralNetwork network) {
 		
 		this.network = network;
 		
 	}
 	
-	public abstract void descend(Matrix[] w, Matrix[] djdw);
+	/**
+	 * 
+	 * Takes one step, updating the weights in place
+	 * 
+	 * @param w
+	 *            - the weights of the network
+	 * @param djdw
+	 *            - their gradients, scaled by the loss scale of the network
+	 */
+	public final void descend(Matrix[] w, Matrix[] djdw) {
+		
+		if (w != weights) {
+			
+			// masters of half precision weights are copies of their own, which nothing else uses
+			if (masters != null) {
+				for (int i = 0; i < masters.length; i++) {
+					if (masters[i] != weights[i]) {
+						masters[i].release();
+					}
+				}
+			}
+			
+			weights = w;
+			masters = masters(w);
+			
+		}
+		
+		float gradientScale = 1;
+		if (lossScaling) {
+			
+			float lossScale = network.getLossScale();
+			if (!isFinite(djdw)) {
+				
+				network.setLossScale(lossScale / 2);
+				stepsSinceOverflow = 0;
+				skippedSteps++;
+				return;
+				
+			}
+			
+			gradientScale = 1 / lossScale;
+			if (++stepsSinceOverflow == LOSS_SCALE_GROWTH_INTERVAL) {
+				network.setLossScale(lossScale * 2);
+				stepsSinceOverflow = 0;
+			}
+			
+		}
+		
+		update(w, masters, djdw, gradientScale);
+		
+	}
+	
+	/**
+	 * 
+	 * Takes one step of the method
+	 * 
+	 * @param w
+	 *            - the weights, which are written to
+	 * @param masters
+	 *            - the weights in single precision, which the step is taken from and which are
+	 *            written to as well. A weight in single precision is its own master
+	 * @param djdw
+	 *            - the gradients of the weights
+	 * @param gradientScale
+	 *            - what the gradients have to be multiplied by to undo loss scaling
+	 */
+	protected abstract void update(Matrix[] w, Matrix[] masters, Matrix[] djdw, float gradientScale);
+	
+	/**
+	 * 
+	 * Turns dynamic loss scaling on or off, which is only worth it for networks stored in half
+	 * precision
+	 * 
+	 * @param lossScaling
+	 *            - whether to scale the gradients of the network
+	 */
+	public void setLossScaling(boolean lossScaling) {
+		
+		this.lossScaling = lossScaling;
+		network.setLossScale(lossScaling ? INITIAL_LOSS_SCALE : 1);
+		stepsSinceOverflow = 0;
+		
+	}
+	
+	public boolean isLossScaling() {
+		
+		return lossScaling;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many steps were skipped because their gradients overflowed
+	 */
+	public int getSkippedSteps() {
+		
+		return skippedSteps;
+		
+	}
+	
+	private static Matrix[] masters(Matrix[] w) {
+		
+		Matrix[] masters = new Matrix[w.length];
+		for (int i = 0; i < w.length; i++) {
+			masters[i] = w[i].getPrecision() == Precision.SINGLE ? w[i] : new Matrix(w[i].getRows(), w[i].getColumns(), w[i].getData(), Precision.SINGLE);
+		}
+		return masters;
+		
+	}
+	
+	/**
+	 * Checks for infinities and NaNs, which any sum they are in would also be. The sums of every
+	 * layer are queued before any is waited for, so the host waits on the device once a step rather
+	 * than once a layer
+	 */
+	private static boolean isFinite(Matrix[] djdw) {
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		CompletableFuture<Float>[] sums = new CompletableFuture[djdw.length];
+		for (int i = 0; i < djdw.length; i++) {
+			sums[i] = Matrix.sumOfSquaresAsync(djdw[i]);
+		}
+		
+		boolean finite = true;
+		for (CompletableFuture<Float> sum : sums) {
+			finite &= Float.isFinite(sum.join());
+		}
+		return finite;
+		
+	}
+	
+	/**
+	 * 
+	 * Creates the state a method keeps for each weight, starting at zero. It is kept in single
+	 * precision whatever the precision of the weights
+	 * 
+	 * @param w
+	 *            - the weights the state is for
+	 * @return a matrix of zeros the size of each weight matrix
+	 */
+	protected static Matrix[] zeros(Matrix[] w) {
+		
+		Matrix[] zeros = new Matrix[w.length];
+		for (int i = 0; i < w.length; i++) {
+			zeros[i] = new Matrix(w[i].getRows(), w[i].getColumns(), new float[w[i].getSize()], Precision.SINGLE);
+		}
+		return zeros;
+		
+	}
 	
 }
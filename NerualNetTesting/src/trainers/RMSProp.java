@@ -0,0 +1,58 @@
+package trainers;
+
+import core.Matrix;
+import core.NeuralNetwork;
+
+/**
+ * 
+ * Gradient descent where the step of each weight is divided by the root of a decaying average of
+ * its squared gradient, so that every weight moves at a similar rate
+ * 
+ * @author Kacper
+ *
+ */
+public class RMSProp extends OptimisationMethod {
+	
+	private final float learningRate;
+	private final float decay;
+	private final float epsilon;
+	
+	private Matrix[] meanSquare;
+	
+	public RMSProp(NeuralNetwork network, float learningRate) {
+		
+		this(network, learningRate, 0.9f, 1e-8f);
+		
+	}
+	
+	/**
+	 * 
+	 * @param decay
+	 *            - how much of the average is kept each step, between 0 and 1
+	 * @param epsilon
+	 *            - keeps the step finite where the gradient has been zero
+	 */
+	public RMSProp(NeuralNetwork network, float learningRate, float decay, float epsilon) {
+		
+		super(network);
+		
+		this.learningRate = learningRate;
+		this.decay = decay;
+		this.epsilon = epsilon;
+		
+	}
+	
+	@Override
+	protected void update(Matrix[] w, Matrix[] masters, Matrix[] djdw, float gradientScale) {
+		
+		if (meanSquare == null) {
+			meanSquare = zeros(w);
+		}
+		
+		for (int i = 0; i < w.length; i++) {
+			Matrix.rmsProp(w[i], masters[i], djdw[i], meanSquare[i], gradientScale, learningRate, decay, epsilon);
+		}
+		
+	}
+	
+}
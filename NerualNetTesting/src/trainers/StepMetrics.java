@@ -0,0 +1,233 @@
+package trainers;
+
+/**
+ * 
+ * What happened in one iteration of TrainingScheme.train. The times are of the training thread,
+ * which only queues most operations, so the time the device spends on them falls into whichever
+ * part waits for it, usually reading the training cost back
+ * 
+ * @see MetricsSink
+ * 
+ * @author Kacper
+ *
+ */
+public final class StepMetrics {
+	
+	/**
+	 * The names of the values toString gives, separated by commas
+	 */
+	public static final String CSV_HEADER = "iteration,trainingCost,testingCost,timeElapsed,samplesPerSecond,stepMillis,forwardMillis,backwardMillis,descendMillis,testingMillis,dataMillis,costWaitMillis,bytesInUse,gcCount,gcMillis,testedIteration";
+	
+	private final int iteration;
+	private final int samples;
+	private final double trainingCost;
+	private final double testingCost;
+	private final int testedIteration;
+	private final double timeElapsed;
+	
+	private final long stepNanos;
+	private final long forwardNanos;
+	private final long backwardNanos;
+	private final long descendNanos;
+	private final long testingNanos;
+	private final long dataNanos;
+	private final long costWaitNanos;
+	
+	private final long bytesInUse;
+	private final long gcCount;
+	private final long gcMillis;
+	
+	StepMetrics(int iteration, int samples, double trainingCost, double testingCost, int testedIteration, double timeElapsed, long stepNanos, long forwardNanos, long backwardNanos, long descendNanos, long testingNanos, long dataNanos, long costWaitNanos, long bytesInUse, long gcCount, long gcMillis) {
+		
+		this.iteration = iteration;
+		this.samples = samples;
+		this.trainingCost = trainingCost;
+		this.testingCost = testingCost;
+		this.testedIteration = testedIteration;
+		this.timeElapsed = timeElapsed;
+		this.stepNanos = stepNanos;
+		this.forwardNanos = forwardNanos;
+		this.backwardNanos = backwardNanos;
+		this.descendNanos = descendNanos;
+		this.testingNanos = testingNanos;
+		this.dataNanos = dataNanos;
+		this.costWaitNanos = costWaitNanos;
+		this.bytesInUse = bytesInUse;
+		this.gcCount = gcCount;
+		this.gcMillis = gcMillis;
+		
+	}
+	
+	public int getIteration() {
+		
+		return iteration;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many samples were trained on in the iteration
+	 */
+	public int getSamples() {
+		
+		return samples;
+		
+	}
+	
+	public double getTrainingCost() {
+		
+		return trainingCost;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the cost of the last test to have finished, or 0 if there is no testing data
+	 */
+	public double getTestingCost() {
+		
+		return testingCost;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many iterations the network had been trained for when the last test to have
+	 *         finished was started, or -1 if none has
+	 */
+	public int getTestedIteration() {
+		
+		return testedIteration;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the seconds since training started
+	 */
+	public double getTimeElapsed() {
+		
+		return timeElapsed;
+		
+	}
+	
+	public double getSamplesPerSecond() {
+		
+		return samples / (stepNanos / 1e9);
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long the whole iteration took
+	 */
+	public long getStepNanos() {
+		
+		return stepNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long was spent on the forward pass of the training data, or with several devices
+	 *         how long the whole step took
+	 */
+	public long getForwardNanos() {
+		
+		return forwardNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long was spent on the backward pass finding the gradients
+	 */
+	public long getBackwardNanos() {
+		
+		return backwardNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long was spent in OptimisationMethod.descend
+	 */
+	public long getDescendNanos() {
+		
+		return descendNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long was spent queuing and waiting for the testing cost
+	 */
+	public long getTestingNanos() {
+		
+		return testingNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long was spent getting the next training data
+	 */
+	public long getDataNanos() {
+		
+		return dataNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long was spent waiting for the training cost to be read back, once the step had
+	 *         been queued after it, which is where the time the device spends on the step shows up
+	 */
+	public long getCostWaitNanos() {
+		
+		return costWaitNanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the bytes of backend storage held by matrices at the end of the iteration
+	 */
+	public long getBytesInUse() {
+		
+		return bytesInUse;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many garbage collections there were during the iteration
+	 */
+	public long getGcCount() {
+		
+		return gcCount;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how long the garbage collections during the iteration took, as the collectors report
+	 *         it
+	 */
+	public long getGcMillis() {
+		
+		return gcMillis;
+		
+	}
+	
+	/**
+	 * @return the values in the order of CSV_HEADER, separated by commas
+	 */
+	@Override
+	public String toString() {
+		
+		return iteration + "," + trainingCost + "," + testingCost + "," + timeElapsed + "," + String.format("%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f", getSamplesPerSecond(), stepNanos / 1e6, forwardNanos / 1e6, backwardNanos / 1e6, descendNanos / 1e6, testingNanos / 1e6, dataNanos / 1e6, costWaitNanos / 1e6) + "," + bytesInUse + "," + gcCount + "," + gcMillis + "," + testedIteration;
+		
+	}
+	
+}
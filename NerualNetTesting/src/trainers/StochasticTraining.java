@@ -1,81 +1,123 @@
 package trainers;
 
-import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import core.Matrix;
+import core.Matrix.Precision;
 import core.NeuralNetwork;
 
 /**
  * 
- * Training Method which only uses a small portion off all samples in each iteration
+ * Training Method which only uses a small portion off all samples in each iteration.
+ * 
+ * The training data is shuffled at the start of every epoch, and each mini-batch is the next run of
+ * the shuffled samples, so every sample is trained on once an epoch. Only the order is shuffled on
+ * the host, and the samples are gathered on the device into one of two mini-batch matrices by a
+ * background thread. While one of them is trained on, the next mini-batch is assembled in the other
  * 
  * @author Jamie
  *
  */
 public class StochasticTraining extends TrainingScheme {
 	
-	private static final int SGD_MINIBATCH_SIZE = 100;
+	public static final int DEFAULT_MINIBATCH_SIZE = 100;
+	
+	private final Random random;
+	private final int miniBatchSize;
+	private final int numMinibatches;
+	
+	private final Matrix[] miniBatchesX = new Matrix[2];
+	private final Matrix[] miniBatchesY = new Matrix[2];
+	private final int[] epochs = new int[2];
 	
-	private int index;
-	private Random random;
+	/**
+	 * The order of the samples in the current epoch, only used by the producer
+	 */
+	private final float[] order;
+	private final Matrix permutation;
+	private int position;
+	private int epoch = -1;
 	
-	private ArrayList<Matrix> miniBatchesY;
-	private ArrayList<Matrix> miniBatchesX;
+	/**
+	 * The mini-batches that can be assembled into, and those which have been, by their index. A
+	 * negative index is added to ready if the producer has failed
+	 */
+	private final BlockingQueue<Integer> free = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Integer> ready = new LinkedBlockingQueue<>();
+	
+	private volatile RuntimeException failure;
+	private Thread producer;
+	private int index = -1;
 	
 	public StochasticTraining(Matrix xTraining, Matrix yTraining, NeuralNetwork network, OptimisationMethod descentMethod, Random random) {
 		
+		this(xTraining, yTraining, network, descentMethod, random, DEFAULT_MINIBATCH_SIZE);
+		
+	}
+	
+	/**
+	 * 
+	 * @param miniBatchSize
+	 *            - how many samples are trained on in each iteration, at most the amount of
+	 *            training samples
+	 */
+	public StochasticTraining(Matrix xTraining, Matrix yTraining, NeuralNetwork network, OptimisationMethod descentMethod, Random random, int miniBatchSize) {
+		
 		super(xTraining, yTraining, network, descentMethod);
-		this.random = random;
 		
-		miniBatchesX = new ArrayList<Matrix>();
-		miniBatchesY = new ArrayList<Matrix>();
+		assert miniBatchSize >= 1 && miniBatchSize <= xTraining.getColumns();
 		
-		float[] xTrainingData = xTraining.getData();
-		float[] yTrainingData = yTraining.getData();
+		this.random = random;
+		this.miniBatchSize = miniBatchSize;
+		this.numMinibatches = xTraining.getColumns() / miniBatchSize;
 		
-		int numMinibatches = (int) (xTraining.getRows() / SGD_MINIBATCH_SIZE);
+		order = new float[xTraining.getColumns()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		permutation = new Matrix(1, order.length, Precision.SINGLE);
+		position = numMinibatches * miniBatchSize;
 		
-		// Split x and y into minibatches
-		for (int i = 0; i < numMinibatches; i++) {
+		for (int i = 0; i < miniBatchesX.length; i++) {
 			
-			float[] batchX = new float[xTraining.getRows() * SGD_MINIBATCH_SIZE];
-			float[] batchY = new float[yTraining.getRows() * SGD_MINIBATCH_SIZE];
-			
-			for (int row = 0; row < xTraining.getRows(); row++) {
-				for (int col = 0; col < SGD_MINIBATCH_SIZE; col++) {
-					
-					batchX[row * xTraining.getRows() + col] = xTrainingData[row * xTraining.getRows() + col + SGD_MINIBATCH_SIZE * i];
-					
-				}
-			}
-			
-			for (int row = 0; row < yTraining.getRows(); row++) {
-				for (int col = 0; col < SGD_MINIBATCH_SIZE; col++) {
-					
-					batchY[row * yTraining.getRows() + col] = yTrainingData[row * xTraining.getRows() + col + SGD_MINIBATCH_SIZE * i];
-					
-				}
-			}
-			
-			miniBatchesX.add(new Matrix(xTraining.getRows(), SGD_MINIBATCH_SIZE, batchX));
-			miniBatchesY.add(new Matrix(yTraining.getRows(), SGD_MINIBATCH_SIZE, batchY));
+			miniBatchesX[i] = new Matrix(xTraining.getRows(), miniBatchSize);
+			miniBatchesY[i] = new Matrix(yTraining.getRows(), miniBatchSize);
+			free.add(i);
 			
 		}
 		
 	}
 	
+	public int getMiniBatchSize() {
+		
+		return miniBatchSize;
+		
+	}
+	
+	/**
+	 * 
+	 * @return how many times every sample had been trained on before the current mini-batch, the
+	 *         samples that don't fill a whole mini-batch are left out of each epoch
+	 */
+	public int getEpoch() {
+		
+		return epochs[current()];
+		
+	}
+	
 	@Override
 	protected Matrix getXTraining() {
 		
-		return miniBatchesX.get(index);
+		return miniBatchesX[current()];
 		
 	}
 	
 	@Override
 	protected Matrix getYTraining() {
 		
-		return miniBatchesY.get(index);
+		return miniBatchesY[current()];
 		
 	}
 	
@@ -96,7 +138,127 @@ public class StochasticTraining extends TrainingScheme {
 	@Override
 	protected void iterateData() {
 		
-		index = random.nextInt(miniBatchesX.size());
+		// the mini-batch is only handed back once everything queued on it so far has run
+		int used = current();
+		Matrix.marker().thenRun(() -> free.add(used));
+		
+		index = -1;
+		
+	}
+	
+	@Override
+	protected void trainingFinished() {
+		
+		if (producer != null) {
+			
+			// the last mini-batch is handed back so that it is assembled again next time
+			if (index >= 0) {
+				iterateData();
+			}
+			
+			producer.interrupt();
+			try {
+				producer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			producer = null;
+			
+		}
+		
+	}
+	
+	/**
+	 * Finds the mini-batch being trained on, waiting for the next one to be assembled if it was
+	 * iterated past
+	 */
+	private int current() {
+		
+		if (producer == null) {
+			
+			// the training data was written on this thread but is copied from on the producer's
+			Matrix.finish();
+			
+			producer = new Thread(this::produce, "StochasticTraining");
+			producer.setDaemon(true);
+			producer.start();
+			
+		}
+		
+		while (index < 0) {
+			
+			try {
+				index = ready.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a mini-batch", e);
+			}
+			
+			if (index < 0) {
+				ready.add(index);
+				throw new IllegalStateException("Unable to assemble a mini-batch", failure);
+			}
+			
+		}
+		return index;
+		
+	}
+	
+	private void produce() {
+		
+		try {
+			
+			while (true) {
+				
+				int next = free.take();
+				
+				if (position == numMinibatches * miniBatchSize) {
+					shuffle();
+				}
+				
+				Matrix.gatherColumns(getAllXTraining(), permutation, position, miniBatchesX[next]);
+				Matrix.gatherColumns(getAllYTraining(), permutation, position, miniBatchesY[next]);
+				position += miniBatchSize;
+				epochs[next] = epoch;
+				
+				// this thread has its own queue, so the gathers have to finish before the training
+				// thread's queue can read them
+				Matrix.marker().join();
+				ready.add(next);
+				
+			}
+			
+		} catch (InterruptedException e) {
+			
+			return;
+			
+		} catch (RuntimeException e) {
+			
+			failure = e;
+			ready.add(-1);
+			
+		}
+		
+	}
+	
+	/**
+	 * Starts the next epoch with a new order of the samples. The upload is queued after the gathers
+	 * of the last epoch on the producer's queue, so they still read the old order
+	 */
+	private void shuffle() {
+		
+		for (int i = order.length - 1; i > 0; i--) {
+			
+			int j = random.nextInt(i + 1);
+			float swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+			
+		}
+		permutation.setData(order);
+		
+		position = 0;
+		epoch++;
 		
 	}
 	
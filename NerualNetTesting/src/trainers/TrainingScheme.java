@@ -1,7 +1,14 @@
 package trainers;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
 import core.Matrix;
 import core.NeuralNetwork;
+import core.Profiler;
 
 /**
  * 
@@ -15,6 +22,8 @@ import core.NeuralNetwork;
  */
 public abstract class TrainingScheme {
 	
+	private static final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	
 	private boolean defaultLimit = true;
 	
 	private boolean useMaxIterations = false;
@@ -30,11 +39,19 @@ public abstract class TrainingScheme {
 	private boolean useTesting;
 	private Matrix allXTesting;
 	private Matrix allYTesting;
+	private int testingIterations = 1;
+	private double testingSeconds = 0;
+	private int testingSamples = 0;
 	
 	private NeuralNetwork network;
 	private OptimisationMethod descentMethod;
+	private DataParallel dataParallel;
 	
 	private CallBack callback;
+	private MetricsSink metricsSink;
+	
+	private long gcCount;
+	private long gcMillis;
 	
 	public TrainingScheme(Matrix xTraining, Matrix yTraining, NeuralNetwork network, OptimisationMethod descentMethod) {
 		
@@ -52,66 +69,183 @@ public abstract class TrainingScheme {
 	/**
 	 * 
 	 * Begins the process of training the network, it will train until the finishing conditions are
-	 * met, by default minCost = 0.001
+	 * met, by default minCost = 0.001. The training cost that is reported for each iteration is the
+	 * cost of its batch before the step taken on it
 	 * 
 	 */
 	public final void train() {
 		
 		System.out.println("Starting training");
 		
+		Profiler.reset();
+		
 		Matrix xTraining = getXTraining();
 		Matrix yTraining = getYTraining();
 		
 		long startTime = System.currentTimeMillis();
 		double timeElapsed = 0;
+		sampleGarbageCollection();
+		
+		Evaluator evaluator = useTesting ? new Evaluator(network, getXTesting(), getYTesting(), testingIterations, testingSeconds, testingSamples) : null;
 		
-		double testingCost;
-		if (useTesting) {
-			Matrix xTesting = getXTesting();
-			Matrix yTesting = getYTesting();
-			testingCost = network.getCost(xTesting, yTesting);
-		} else {
-			testingCost = 0;
+		long stepStart = System.nanoTime();
+		if (evaluator != null) {
+			evaluator.evaluate(0);
+		}
+		long forwardStart = System.nanoTime();
+		Profiler.setPhase("forward");
+		double trainingCost = network.getCost(xTraining, yTraining);
+		long forwardEnd = System.nanoTime();
+		
+		// the first test is waited for, so that there is a testing cost to start from
+		if (evaluator != null) {
+			evaluator.await();
 		}
-		Matrix yHat = network.forward(xTraining);
-		double trainingCost = network.getCost(xTraining, yTraining, yHat);
+		long stepEnd = System.nanoTime();
 		
-		if (callback != null) {
-			callback.iterated(network, 0, trainingCost, testingCost, timeElapsed);
+		reportIteration(evaluator, 0, trainingCost, timeElapsed);
+		if (metricsSink != null) {
+			metricsSink.accept(getMetrics(evaluator, 0, 0, trainingCost, timeElapsed, stepEnd - stepStart, forwardEnd - forwardStart, 0, 0, forwardStart - stepStart + stepEnd - forwardEnd, 0, 0));
 		}
 		
 		for (int iteration = 0; (!useMaxIterations || iteration < maxIterations) && (!useMinCost || trainingCost > minCost) && (!useMaxTime || timeElapsed < maxTime); iteration++) {
 			
+			stepStart = System.nanoTime();
+			long backward = 0;
+			long descend = 0;
+			long time;
+			
 			xTraining = getXTraining();
 			yTraining = getYTraining();
+			long data = System.nanoTime() - stepStart;
 			
-			Matrix[] djdw = network.getCostPrime(xTraining, yTraining, yHat);
+			NeuralNetwork.Step step = null;
+			long forward = 0;
+			if (dataParallel == null) {
+				
+				step = network.trainStep(xTraining, yTraining);
+				forward = step.getForwardNanos();
+				backward = step.getBackwardNanos();
+				
+				time = System.nanoTime();
+				Profiler.setPhase("update");
+				descentMethod.descend(network.getW(), step.getDjdw());
+				descend = System.nanoTime() - time;
+				
+			} else {
+				
+				// the devices take the whole step together, so it is all counted as forward
+				time = System.nanoTime();
+				Profiler.setPhase("dataParallel");
+				trainingCost = dataParallel.step(xTraining, yTraining, descentMethod);
+				forward = System.nanoTime() - time;
+				
+			}
 			
-			descentMethod.descend(network.getW(), djdw);
+			// only a snapshot of the weights is queued here, the test itself runs alongside training
+			time = System.nanoTime();
+			if (evaluator != null) {
+				evaluator.iterated(iteration + 1);
+			}
+			long testing = System.nanoTime() - time;
 			
-			if (useTesting) {
-				Matrix xTesting = getXTesting();
-				Matrix yTesting = getYTesting();
-				testingCost = network.getCost(xTesting, yTesting);
-			} else {
-				testingCost = 0;
+			// the cost is only waited for once the step has been queued after it
+			long costWait = 0;
+			if (step != null) {
+				
+				time = System.nanoTime();
+				trainingCost = step.getCost();
+				costWait = System.nanoTime() - time;
+				
 			}
-			yHat = network.forward(xTraining);
-			trainingCost = network.getCost(xTraining, yTraining, yHat);
 			
+			time = System.nanoTime();
+			Profiler.setPhase("data");
 			iterateData();
+			stepEnd = System.nanoTime();
+			data += stepEnd - time;
 			
 			timeElapsed = (System.currentTimeMillis() - startTime) / 1000d;
-			if (callback != null) {
-				callback.iterated(network, iteration + 1, trainingCost, testingCost, timeElapsed);
+			reportIteration(evaluator, iteration + 1, trainingCost, timeElapsed);
+			if (metricsSink != null) {
+				metricsSink.accept(getMetrics(evaluator, iteration + 1, xTraining.getColumns(), trainingCost, timeElapsed, stepEnd - stepStart, forward, backward, descend, testing, data, costWait));
 			}
 			
-			System.gc(); // to make sure that there is always as much free video memory as possible
-			
 		}
 		
+		trainingFinished();
+		
 		System.out.println("Training Completed");
 		
+		if (evaluator != null) {
+			
+			evaluator.close();
+			System.out.println("The testing cost after " + evaluator.getCostIteration() + " iterations was " + evaluator.getCost());
+			
+		}
+		
+		if (Profiler.isEnabled()) {
+			writeProfile();
+		}
+		
+	}
+	
+	/**
+	 * Reads the garbage collections so far, so that the next metrics only count those since
+	 */
+	private void sampleGarbageCollection() {
+		
+		gcCount = 0;
+		gcMillis = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			
+			gcCount += Math.max(0, collector.getCollectionCount());
+			gcMillis += Math.max(0, collector.getCollectionTime());
+			
+		}
+		
+	}
+	
+	private StepMetrics getMetrics(Evaluator evaluator, int iteration, int samples, double trainingCost, double timeElapsed, long step, long forward, long backward, long descend, long testing, long data, long costWait) {
+		
+		long lastCount = gcCount;
+		long lastMillis = gcMillis;
+		sampleGarbageCollection();
+		
+		double testingCost = evaluator == null ? 0 : evaluator.getCost();
+		int testedIteration = evaluator == null ? -1 : evaluator.getCostIteration();
+		return new StepMetrics(iteration, samples, trainingCost, testingCost, testedIteration, timeElapsed, step, forward, backward, descend, testing, data, costWait, Matrix.getPool().getBytesInUse(), gcCount - lastCount, gcMillis - lastMillis);
+		
+	}
+	
+	private void reportIteration(Evaluator evaluator, int iteration, double trainingCost, double timeElapsed) {
+		
+		if (callback != null) {
+			callback.iterated(network, iteration, trainingCost, evaluator == null ? 0 : evaluator.getCost(), timeElapsed);
+		}
+		
+	}
+	
+	/**
+	 * Prints a summary of every command queued while training and writes them as a trace to the
+	 * file named by "matrix.profile.trace", trace.json by default
+	 */
+	private void writeProfile() {
+		
+		Profiler.finish();
+		Profiler.setPhase("");
+		Profiler.printSummary(System.out);
+		
+		File trace = new File(System.getProperty(Profiler.TRACE_PROPERTY, "trace.json"));
+		try {
+			
+			Profiler.writeTrace(trace);
+			System.out.println("Wrote the profile of training to " + trace);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
 	}
 	
 	protected abstract Matrix getYTraining();
@@ -124,6 +258,11 @@ public abstract class TrainingScheme {
 	
 	protected abstract void iterateData();
 	
+	/**
+	 * Called once training has stopped, so that anything started for it can be stopped too
+	 */
+	protected void trainingFinished() {}
+	
 	protected Matrix getAllXTraining() {
 		
 		return allXTraining;
@@ -160,6 +299,55 @@ public abstract class TrainingScheme {
 		
 	}
 	
+	/**
+	 * 
+	 * Sets how often the network is tested while it trains. Each test runs alongside training on a
+	 * snapshot of the weights, so the testing cost that is reported is that of the last test to have
+	 * finished. A test that is due while the last is still running is put off until it has finished.
+	 * By default the network is tested every iteration
+	 * 
+	 * @param iterations
+	 *            - how many iterations there are between tests, 0 for no limit
+	 * @param seconds
+	 *            - how long there is between tests, 0 for no limit
+	 */
+	public void setTestingInterval(int iterations, double seconds) {
+		
+		assert iterations >= 0 && seconds >= 0 && (iterations > 0 || seconds > 0);
+		
+		this.testingIterations = iterations;
+		this.testingSeconds = seconds;
+		
+	}
+	
+	/**
+	 * 
+	 * Tests the network on only some of the testing samples, each test using the next run of them
+	 * 
+	 * @param samples
+	 *            - how many samples each test uses, 0 for all of them
+	 */
+	public void setTestingSamples(int samples) {
+		
+		assert samples >= 0;
+		
+		this.testingSamples = samples;
+		
+	}
+	
+	/**
+	 * 
+	 * Sets what is given the metrics of every iteration, see StepMetrics
+	 * 
+	 * @param metricsSink
+	 *            - the sink, which is called on the training thread so shouldn't block
+	 */
+	public void setMetricsSink(MetricsSink metricsSink) {
+		
+		this.metricsSink = metricsSink;
+		
+	}
+	
 	public void setTestingData(Matrix xTesting, Matrix yTesting) {
 		
 		assert xTesting.getRows() == network.getInputLayerSize() && yTesting.getRows() == network.getOutputLayerSize();
@@ -170,6 +358,21 @@ public abstract class TrainingScheme {
 		
 	}
 	
+	/**
+	 * 
+	 * Splits every batch over several devices, see DataParallel
+	 * 
+	 * @param devices
+	 *            - how many devices to use, at most Matrix.getDeviceCount()
+	 */
+	public void setDevices(int devices) {
+		
+		assert devices >= 1 && devices <= Matrix.getDeviceCount();
+		
+		dataParallel = devices > 1 ? new DataParallel(network, devices) : null;
+		
+	}
+	
 	public void setMaxIterations(int maxIterations) {
 		
 		if (defaultLimit) {